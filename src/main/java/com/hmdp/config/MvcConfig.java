@@ -1,5 +1,7 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.RedisTemplate;
@@ -13,16 +15,26 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Autowired
+    private SeckillRateLimiter seckillRateLimiter;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new com.hmdp.utils.LoginInterceptor())
                 .excludePathPatterns("/shop/**",
                                     "/voucher/**",
                                     "/upload/**",
+                                    "/imgs/**",
                                     "/blog/hot",
                                     "/user/code",
                                     "/user/login",
-                                    "/shop-type/**").order(1);
-        registry.addInterceptor(new com.hmdp.utils.TokenRefresherInterceptor(stringRedisTemplate)).order(0);
+                                    "/shop-type/**").order(2);
+        registry.addInterceptor(new com.hmdp.utils.TokenRefresherInterceptor(stringRedisTemplate)).order(1);
+        // 秒杀的售罄和限流拒绝在读取登录信息之前，被拒绝的请求不访问Redis
+        registry.addInterceptor(new com.hmdp.utils.SeckillAdmissionInterceptor(seckillSoldOutRegistry, seckillRateLimiter))
+                .addPathPatterns("/voucher-order/seckill/*").order(0);
     }
 }
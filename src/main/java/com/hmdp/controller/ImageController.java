@@ -0,0 +1,32 @@
+package com.hmdp.controller;
+
+import com.hmdp.utils.ImageServer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+@RestController
+@RequestMapping("/imgs")
+public class ImageController {
+
+    private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
+
+    @Resource
+    private ImageServer imageServer;
+
+    /**
+     * 访问上传的图片，路径与nginx的/imgs一致，如 /imgs/blogs/1/2/xxx.jpg
+     * 支持ETag协商缓存和Range分段下载，部署时可以不再需要nginx
+     */
+    @GetMapping("/**")
+    public void queryImage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String path = URL_PATH_HELPER.getPathWithinApplication(request);
+        imageServer.serve(path.substring("/imgs".length()), request, response);
+    }
+}
@@ -3,13 +3,18 @@ package com.hmdp.controller;
 
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.KeysetCursor;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSuggestIndex;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -26,6 +31,12 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private ShopSuggestIndex shopSuggestIndex;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -43,8 +54,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
+        // 写入数据库，并加入GEO索引
+        shopService.saveShop(shop);
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -61,37 +72,93 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param cursor 分页游标，传入时（首页传空串）按游标分页，返回 {@link CursorResult}
+     * @param x 经度，和纬度一起传入时按距离由近到远分页
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
+    ) {
+        if (x != null && y != null) {
+            // 附近的商铺，按距离排序
+            return shopService.queryShopByType(typeId, current, x, y);
+        }
+        // 按id排序的分类列表，id缓存在Redis和本地，商铺从缓存批量获取
+        return shopService.queryShopByType(typeId, current, cursor);
+    }
+
+    /**
+     * 按类型、商圈、均价筛选商铺，按评分、销量或评论数排序
+     * @param typeId 商铺类型
+     * @param area 商圈
+     * @param minPrice 最低均价
+     * @param maxPrice 最高均价
+     * @param sortBy 排序字段：score、sold、comments，默认score
+     * @param current 页码
+     * @return 商铺列表
+     */
+    @GetMapping("/filter")
+    public Result queryShopByFilter(
+            @RequestParam(value = "typeId", required = false) Long typeId,
+            @RequestParam(value = "area", required = false) String area,
+            @RequestParam(value = "minPrice", required = false) Long minPrice,
+            @RequestParam(value = "maxPrice", required = false) Long maxPrice,
+            @RequestParam(value = "sortBy", defaultValue = "score") String sortBy,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByFilter(typeId, StrUtil.isBlank(area) ? null : area,
+                minPrice, maxPrice, sortBy, current);
     }
 
     /**
-     * 根据商铺名称关键字分页查询商铺信息
+     * 根据商铺名称关键字分页查询商铺信息，有关键字时按评分、销量排序
      * @param name 商铺名称关键字
      * @param current 页码
+     * @param cursor 分页游标，传入时（首页传空串）按游标分页，返回 {@link CursorResult}
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
-        // 根据类型分页查询
+        if (StrUtil.isNotBlank(name) && shopNameIndex.isLoaded()) {
+            // 名称关键字走内存倒排索引，按评分、销量排序
+            return shopService.queryShopByName(name, current, cursor);
+        }
+        if (cursor != null) {
+            // keyset pagination on id
+            KeysetCursor seek = KeysetCursor.decode(cursor);
+            if (seek == null && StrUtil.isNotBlank(cursor)) {
+                return Result.fail("无效的分页游标");
+            }
+            int size = SystemConstants.MAX_PAGE_SIZE;
+            List<Shop> shops = KeysetCursor.seek(shopService.query().like(StrUtil.isNotBlank(name), "name", name),
+                    "id", true, seek, size).list();
+            return Result.ok(new CursorResult(shops, KeysetCursor.next(shops, size, Shop::getId, Shop::getId)));
+        }
+        // 根据类型分页查询，不查询总数
         Page<Shop> page = shopService.query()
                 .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
         // 返回数据
         return Result.ok(page.getRecords());
     }
+
+    /**
+     * 搜索框联想，按名称前缀返回评分、销量最高的商铺
+     * @param prefix 已输入的名称前缀
+     * @return 商铺id和名称
+     */
+    @GetMapping("/suggest")
+    public Result suggestShops(@RequestParam(value = "prefix", required = false) String prefix) {
+        return Result.ok(shopSuggestIndex.suggest(prefix, SystemConstants.SHOP_SUGGEST_SIZE));
+    }
 }
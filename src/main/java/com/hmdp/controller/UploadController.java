@@ -1,63 +1,105 @@
 package com.hmdp.controller;
 
-import cn.hutool.core.io.FileUtil;
-import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.ImageDTO;
+import com.hmdp.dto.ImageGcReport;
 import com.hmdp.dto.Result;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.ImageGarbageCollector;
+import com.hmdp.utils.ImageStore;
+import com.hmdp.utils.ImageVariantGenerator;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.FileItemIterator;
+import org.apache.tomcat.util.http.fileupload.FileItemStream;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletFileUpload;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.UUID;
+import java.io.InputStream;
 
 @Slf4j
 @RestController
 @RequestMapping("upload")
 public class UploadController {
 
+    @Resource
+    private ImageStore imageStore;
+
+    @Resource
+    private ImageVariantGenerator imageVariantGenerator;
+
+    @Resource
+    private ImageGarbageCollector imageGarbageCollector;
+
+    /**
+     * 上传博客图片，表单字段为file
+     * 边读取请求体边计算哈希并写入磁盘，不经过multipart解析器缓冲；相同内容的图片只保存一份
+     * 各宽度的缩略图在后台生成，立即返回原图和缩略图的名称
+     */
     @PostMapping("blog")
-    public Result uploadImage(@RequestParam("file") MultipartFile image) {
+    public Result uploadImage(HttpServletRequest request) {
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            return Result.fail("请选择要上传的图片");
+        }
         try {
-            // 获取原始文件名称
-            String originalFilename = image.getOriginalFilename();
-            // 生成新文件名
-            String fileName = createNewFileName(originalFilename);
-            // 保存文件
-            image.transferTo(new File(SystemConstants.IMAGE_UPLOAD_DIR, fileName));
-            // 返回结果
-            log.debug("文件上传成功，{}", fileName);
-            return Result.ok(fileName);
+            FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemStream item = items.next();
+                if (item.isFormField() || !"file".equals(item.getFieldName())) {
+                    continue;
+                }
+                // 保存文件
+                try (InputStream in = item.openStream()) {
+                    String fileName = imageStore.save(in, item.getName());
+                    log.debug("文件上传成功，{}", fileName);
+                    // 生成缩略图，返回结果
+                    return Result.ok(imageVariantGenerator.submit(fileName));
+                }
+            }
+            return Result.fail("请选择要上传的图片");
+        } catch (IllegalArgumentException e) {
+            return Result.fail(e.getMessage());
         } catch (IOException e) {
             throw new RuntimeException("文件上传失败", e);
         }
     }
 
+    /**
+     * 查询缩略图的生成状态：pending 生成中，done 已生成，failed 生成失败，只能使用原图
+     */
+    @GetMapping("/blog/status")
+    public Result queryImageStatus(@RequestParam("name") String filename) {
+        if (imageStore.resolve(filename) == null) {
+            return Result.fail("错误的文件名称");
+        }
+        String status = imageVariantGenerator.status(filename);
+        if (status == null) {
+            return Result.fail("图片不存在");
+        }
+        return Result.ok(new ImageDTO(filename, status, ImageVariantGenerator.variantsOf(filename)));
+    }
+
     @GetMapping("/blog/delete")
     public Result deleteBlogImg(@RequestParam("name") String filename) {
-        File file = new File(SystemConstants.IMAGE_UPLOAD_DIR, filename);
-        if (file.isDirectory()) {
-            return Result.fail("错误的文件名称");
+        try {
+            if (!imageStore.release(filename)) {
+                return Result.fail("错误的文件名称");
+            }
+            return Result.ok();
+        } catch (IOException e) {
+            throw new RuntimeException("文件删除失败", e);
         }
-        FileUtil.del(file);
-        return Result.ok();
     }
 
-    private String createNewFileName(String originalFilename) {
-        // 获取后缀
-        String suffix = StrUtil.subAfter(originalFilename, ".", true);
-        // 生成目录
-        String name = UUID.randomUUID().toString();
-        int hash = name.hashCode();
-        int d1 = hash & 0xF;
-        int d2 = (hash >> 4) & 0xF;
-        // 判断目录是否存在
-        File dir = new File(SystemConstants.IMAGE_UPLOAD_DIR, StrUtil.format("/blogs/{}/{}", d1, d2));
-        if (!dir.exists()) {
-            dir.mkdirs();
+    /**
+     * 最近一次孤儿图片清理的报告，dry-run时只统计不删除
+     */
+    @GetMapping("/gc/report")
+    public Result queryGcReport() {
+        ImageGcReport report = imageGarbageCollector.lastReport();
+        if (report == null) {
+            return Result.fail("尚未执行过图片清理");
         }
-        // 生成文件名
-        return StrUtil.format("/blogs/{}/{}/{}.{}", d1, d2, name, suffix);
+        return Result.ok(report);
     }
 }
@@ -70,6 +70,30 @@ public class UserController {
         return Result.ok(user);
     }
 
+    /**
+     * 签到
+     */
+    @PostMapping("/sign")
+    public Result sign() {
+        return userService.sign();
+    }
+
+    /**
+     * 本月截至今天的连续签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signCount() {
+        return userService.signCount();
+    }
+
+    /**
+     * 本月累计签到天数
+     */
+    @GetMapping("/sign/total")
+    public Result signTotal() {
+        return userService.signTotal();
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
         // 查询详情
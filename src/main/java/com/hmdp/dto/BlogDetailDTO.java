@@ -0,0 +1,24 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.entity.Shop;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class BlogDetailDTO {
+    /**
+     * the blog, with author and like status when they are resolved in time
+     */
+    private Blog blog;
+    /**
+     * the shop of the blog, null when it is not resolved in time
+     */
+    private Shop shop;
+    /**
+     * latest comments, null when they are not resolved in time
+     */
+    private List<BlogComments> comments;
+}
@@ -0,0 +1,25 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageDTO {
+    /**
+     * name of the original image, relative to the image root
+     */
+    private String name;
+    /**
+     * pending, done or failed, the variants exist once done
+     */
+    private String status;
+    /**
+     * width -> name of the image scaled to that width
+     */
+    private Map<Integer, String> variants;
+}
@@ -0,0 +1,33 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of one run of the image garbage collector
+ */
+@Data
+public class ImageGcReport {
+    private boolean dryRun;
+    private LocalDateTime startTime;
+    private long elapsedMillis;
+    /**
+     * distinct images referenced by blogs
+     */
+    private int referencedImages;
+    private long scannedFiles;
+    /**
+     * files referenced by no blog and older than the grace period
+     */
+    private long orphanFiles;
+    private long orphanBytes;
+    private long deletedFiles;
+    private long deletedBytes;
+    /**
+     * the first orphans found, for a look before deleting
+     */
+    private List<String> sample = new ArrayList<>();
+}
@@ -1,8 +1,12 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.function.Consumer;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +17,28 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IBlogService extends IService<Blog> {
 
+    Result saveBlog(Blog blog);
+
+    Result likeBlog(Long id);
+
+    Result queryBlogById(Long id);
+
+    Result queryBlogLikes(Long id);
+
+    Result queryMyBlog(Integer current, String cursor);
+
+    Result queryHotBlog(Integer current, String cursor);
+
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    /**
+     * Fill author and like status of a page of blogs, with one batch profile lookup and one Redis pipeline per page
+     * @param blogs the blogs to fill
+     */
+    void fillBlogs(List<Blog> blogs);
+
+    /**
+     * Feed the images of all blogs to the consumer, scanning the blogs in batches by id
+     */
+    void scanImages(Consumer<String> consumer);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +19,80 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    /**
+     * Save a shop and add it to the GEO index of its type
+     */
+    void saveShop(Shop shop);
+
+    /**
+     * Query shops of a type sorted by distance from the given location, within {@link com.hmdp.utils.SystemConstants#SHOP_NEARBY_RADIUS_METERS}
+     * @param typeId  shop type
+     * @param current page number, starting from 1
+     * @param x       longitude
+     * @param y       latitude
+     * @return the shops of the page with distance in meters
+     */
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    /**
+     * Query shops of a type in id order, sliced from the cached ids of the type and materialized through the shop cache
+     * @param typeId  shop type
+     * @param current page number, starting from 1, used when cursor is null
+     * @param cursor  keyset cursor of the next page, blank for the first page, returns {@link com.hmdp.dto.CursorResult}
+     * @return the shops of the page
+     */
+    Result queryShopByType(Integer typeId, Integer current, String cursor);
+
+    /**
+     * Query shops matching all the given filters from the in-JVM {@link com.hmdp.utils.ShopCatalog},
+     * materialized through the shop cache
+     * @param typeId   shop type, null for any
+     * @param area     area, null for any
+     * @param minPrice lowest average price, null for no limit
+     * @param maxPrice highest average price, null for no limit
+     * @param sortBy   score, sold or comments, descending, score if anything else
+     * @param current  page number, starting from 1
+     * @return the shops of the page
+     */
+    Result queryShopByFilter(Long typeId, String area, Long minPrice, Long maxPrice, String sortBy, Integer current);
+
+    /**
+     * Query shops whose names contain the keyword through the in-JVM {@link com.hmdp.utils.ShopNameIndex},
+     * ranked by score, then sold
+     * @param name    name keyword
+     * @param current page number, starting from 1, used when cursor is null
+     * @param cursor  keyset cursor of the next page, blank for the first page, returns {@link com.hmdp.dto.CursorResult}
+     * @return the shops of the page
+     */
+    Result queryShopByName(String name, Integer current, String cursor);
+
+    /**
+     * Batch query shops through the shop cache
+     * @param ids shop ids
+     * @return shops in the order of the given ids, unknown ids are skipped
+     */
+    List<Shop> queryShops(List<Long> ids);
+
+    /**
+     * Build the GEO index shop:geo:{typeId} and the in-JVM {@link com.hmdp.utils.ShopGeoIndex} of all shops
+     * from the database in pipelined batches
+     */
+    void loadShopGeo();
+
+    /**
+     * Build the in-JVM {@link com.hmdp.utils.ShopNameIndex} and {@link com.hmdp.utils.ShopSuggestIndex}
+     * of all shop names from the database in batches
+     */
+    void loadShopNames();
+
+    /**
+     * Build the in-JVM {@link com.hmdp.utils.ShopCatalog} from the database and follow the shop change stream
+     */
+    void loadShopCatalog();
+
+    /**
+     * Cache the ids of every shop type and the shops of their first pages
+     */
+    void warmUpShopTypes();
 }
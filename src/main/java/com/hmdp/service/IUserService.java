@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -19,4 +21,23 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    /**
+     * Batch query user profiles through the user cache
+     * @param ids user ids
+     * @return profiles in the order of the given ids, unknown ids are skipped
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
+
+    Result sign();
+
+    /**
+     * @return the current streak of consecutive sign-in days in this month
+     */
+    Result signCount();
+
+    /**
+     * @return the number of days signed in this month
+     */
+    Result signTotal();
 }
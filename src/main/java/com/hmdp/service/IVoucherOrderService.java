@@ -1,8 +1,12 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +17,29 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
+    Result seckillVoucher(Long voucherId);
+
+    void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * Persist a batch of orders with one multi-row INSERT and one stock update per voucher,
+     * orders already persisted by an earlier delivery are skipped
+     * @param voucherOrders the orders
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * Return the Redis seckill stock taken by the given buyers, and let them order again
+     * @param voucherId the voucher
+     * @param userIds   buyers whose orders are cancelled
+     * @return the number of stock units returned
+     */
+    int returnSeckillStock(Long voucherId, Collection<Long> userIds);
+
+    /**
+     * Cancel the orders still unpaid and return their stock in MySQL, with one update per voucher
+     * @param orderIds the orders timed out
+     * @return the orders cancelled
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
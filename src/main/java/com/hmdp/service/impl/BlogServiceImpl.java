@@ -1,10 +1,65 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.BlogDetailDTO;
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.entity.Follow;
+import com.hmdp.entity.Shop;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IBlogCommentsService;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ImageGarbageCollector;
+import com.hmdp.utils.ImageStore;
+import com.hmdp.utils.KeysetCursor;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -14,7 +69,367 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    private static final int BLOG_LIKES_TOP_N = 5;
+    private static final int BLOG_COMMENTS_PREVIEW_SIZE = 3;
+
+    // time budget of each part of the blog detail, counted from the start of the fan-out
+    private static final long AUTHOR_TIMEOUT_MILLIS = 100;
+    private static final long LIKE_TIMEOUT_MILLIS = 100;
+    private static final long SHOP_TIMEOUT_MILLIS = 200;
+    private static final long COMMENTS_TIMEOUT_MILLIS = 200;
+
+    // Apply a bounded thread pool to load the parts of the blog detail concurrently,
+    // when it is saturated the parts are rejected and left empty instead of queuing up
+    private static final ThreadPoolExecutor BLOG_DETAIL_EXECUTOR = new ThreadPoolExecutor(
+            Runtime.getRuntime().availableProcessors() * 2, Runtime.getRuntime().availableProcessors() * 2,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256),
+            new NamedThreadFactory("blog-detail-", true), new ThreadPoolExecutor.AbortPolicy());
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IBlogCommentsService blogCommentsService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ImageGarbageCollector imageGarbageCollector;
+
+    @Resource
+    private ImageStore imageStore;
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 刷新图片的修改时间，清理孤儿图片时保留；已被清理的图片需要重新上传
+        if (StrUtil.isNotBlank(blog.getImages())) {
+            for (String image : blog.getImages().split(",")) {
+                if (StrUtil.isNotBlank(image) && !touchImage(image.trim())) {
+                    return Result.fail("图片已失效，请重新上传");
+                }
+            }
+        }
+        // 保存探店博文
+        boolean success = save(blog);
+        if (!success) {
+            return Result.fail("新增笔记失败");
+        }
+        // push the blog id to the feed of every follower
+        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
+        long now = System.currentTimeMillis();
+        for (Follow follow : follows) {
+            stringRedisTemplate.opsForZSet().add(FEED_KEY + follow.getUserId(), blog.getId().toString(), now);
+        }
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
+    private boolean touchImage(String image) {
+        try {
+            return imageStore.touch(image);
+        } catch (IOException e) {
+            throw new RuntimeException("图片更新失败", e);
+        }
+    }
+
+    @Override
+    @Transactional
+    public Result likeBlog(Long id) {
+        Long userId = UserHolder.getUser().getId();
+        String key = BLOG_LIKED_KEY + id;
+        // the sorted set of likers is the source of truth of "liked by me", scored by like time. The counter only
+        // follows an actual change of the set, so two concurrent clicks of the same user count once
+        Boolean added = stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+        if (BooleanUtil.isTrue(added)) {
+            // not liked yet, like it
+            boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
+            if (!success) {
+                // no such blog
+                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                return Result.fail("笔记不存在！");
+            }
+            stringRedisTemplate.delete(CACHE_BLOG_LIKES_KEY + id);
+        } else {
+            // already liked, cancel it
+            Long removed = stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+            if (removed != null && removed == 1) {
+                update().setSql("liked = liked - 1").eq("id", id).gt("liked", 0).update();
+                stringRedisTemplate.delete(CACHE_BLOG_LIKES_KEY + id);
+            }
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result queryBlogById(Long id) {
+        // the blog row through the logical expiration cache, loaded once under a lock on first access,
+        // a missing id is cached as empty
+        Blog cached = cacheClient.queryWithLogicalExpireOrLoad(CACHE_BLOG_KEY, id, Blog.class, this::getById,
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (cached == null) {
+            return Result.fail("笔记不存在！");
+        }
+        // the cached instance is shared, fill a copy of it
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
+
+        // fan out the parts concurrently, a part that fails or runs out of time is left empty
+        long start = System.nanoTime();
+        Future<List<UserDTO>> author = supplyAsync(
+                () -> userService.queryUserDTOs(Collections.singletonList(blog.getUserId())));
+        Future<List<Boolean>> like = supplyAsync(() -> isLiked(Collections.singletonList(blog)));
+        Future<Shop> shop = supplyAsync(() -> cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,
+                blog.getShopId(), Shop.class, shopService::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES));
+        Future<List<BlogComments>> comments = supplyAsync(() -> blogCommentsService.query()
+                .eq("blog_id", id).orderByDesc("create_time").last("LIMIT " + BLOG_COMMENTS_PREVIEW_SIZE).list());
+
+        List<UserDTO> authors = join(author, start, AUTHOR_TIMEOUT_MILLIS, "author", id);
+        if (authors != null && !authors.isEmpty()) {
+            blog.setName(authors.get(0).getNickName());
+            blog.setIcon(authors.get(0).getIcon());
+        }
+        List<Boolean> liked = join(like, start, LIKE_TIMEOUT_MILLIS, "like", id);
+        if (liked != null) {
+            blog.setIsLike(liked.get(0));
+        }
+        BlogDetailDTO detail = new BlogDetailDTO();
+        detail.setBlog(blog);
+        detail.setShop(join(shop, start, SHOP_TIMEOUT_MILLIS, "shop", id));
+        detail.setComments(join(comments, start, COMMENTS_TIMEOUT_MILLIS, "comments", id));
+        return Result.ok(detail);
+    }
+
+    // a FutureTask, so cancelling a part that ran out of time interrupts its thread
+    private static <T> Future<T> supplyAsync(Supplier<T> part) {
+        Supplier<T> task = UserHolder.wrap(part);
+        try {
+            return BLOG_DETAIL_EXECUTOR.submit(task::get);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    // wait for a part until its budget since the start of the fan-out is spent, null if it is not available
+    private static <T> T join(Future<T> part, long start, long timeoutMillis, String name, Long blogId) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - (System.nanoTime() - start);
+        try {
+            return part.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // a blocked Redis call gives up on the interrupt and frees the thread, a JDBC query runs on until the
+            // driver notices or its own timeout hits
+            part.cancel(true);
+            log.warn("blog {} detail part {} timed out after {}ms", blogId, name, timeoutMillis);
+        } catch (ExecutionException e) {
+            log.warn("blog {} detail part {} failed", blogId, name, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    @Override
+    public Result queryBlogLikes(Long id) {
+        // memoized top likers, dropped by every like and unlike of this blog
+        String cacheKey = CACHE_BLOG_LIKES_KEY + id;
+        String json = stringRedisTemplate.opsForValue().get(cacheKey);
+        if (json != null) {
+            return Result.ok(JSONUtil.toList(json, UserDTO.class));
+        }
+        // the earliest likers, in like order
+        Set<String> top = stringRedisTemplate.opsForZSet().range(BLOG_LIKED_KEY + id, 0, BLOG_LIKES_TOP_N - 1);
+        List<UserDTO> userDTOs = Collections.emptyList();
+        if (top != null && !top.isEmpty()) {
+            List<Long> ids = top.stream().map(Long::valueOf).collect(Collectors.toList());
+            userDTOs = userService.queryUserDTOs(ids);
+        }
+        stringRedisTemplate.opsForValue().set(cacheKey, JSONUtil.toJsonStr(userDTOs),
+                CACHE_BLOG_LIKES_TTL, TimeUnit.MINUTES);
+        // a like or unlike between the read and the write dropped the cache before it was written, drop it again.
+        // One that comes after this check drops it itself
+        Set<String> now = stringRedisTemplate.opsForZSet().range(BLOG_LIKED_KEY + id, 0, BLOG_LIKES_TOP_N - 1);
+        if (!Objects.equals(top == null ? null : new ArrayList<>(top), now == null ? null : new ArrayList<>(now))) {
+            stringRedisTemplate.delete(cacheKey);
+        }
+        return Result.ok(userDTOs);
+    }
+
+    @Override
+    public Result queryMyBlog(Integer current, String cursor) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        if (cursor != null) {
+            // keyset pagination on (user_id, id), newest first
+            KeysetCursor seek = KeysetCursor.decode(cursor);
+            if (seek == null && StrUtil.isNotBlank(cursor)) {
+                return Result.fail("无效的分页游标");
+            }
+            int size = SystemConstants.MAX_PAGE_SIZE;
+            List<Blog> blogs = KeysetCursor.seek(query().eq("user_id", user.getId()),
+                    "id", false, seek, size).list();
+            fillBlogs(blogs);
+            return Result.ok(new CursorResult(blogs, KeysetCursor.next(blogs, size, Blog::getId, Blog::getId)));
+        }
+        // 根据用户查询，不查询总数
+        Page<Blog> page = query()
+                .eq("user_id", user.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+        // 获取当前页数据
+        List<Blog> records = page.getRecords();
+        fillBlogs(records);
+        return Result.ok(records);
+    }
+
+    @Override
+    public Result queryHotBlog(Integer current, String cursor) {
+        if (cursor != null) {
+            // keyset pagination on (liked, id), most liked first
+            KeysetCursor seek = KeysetCursor.decode(cursor);
+            if (seek == null && StrUtil.isNotBlank(cursor)) {
+                return Result.fail("无效的分页游标");
+            }
+            int size = SystemConstants.MAX_PAGE_SIZE;
+            List<Blog> blogs = KeysetCursor.seek(query(), "liked", false, seek, size).list();
+            fillBlogs(blogs);
+            return Result.ok(new CursorResult(blogs, KeysetCursor.next(blogs, size, Blog::getLiked, Blog::getId)));
+        }
+        // 根据用户查询，不查询总数
+        Page<Blog> page = query()
+                .orderByDesc("liked")
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+        // 获取当前页数据
+        List<Blog> records = page.getRecords();
+        // 查询用户及点赞状态
+        fillBlogs(records);
+        return Result.ok(records);
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        Long userId = UserHolder.getUser().getId();
+        // scroll the feed inbox: entries scored not above the last min time, skipping the ones already seen
+        String key = FEED_KEY + userId;
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(key, 0, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        if (tuples == null || tuples.isEmpty()) {
+            return Result.ok(new ScrollResult());
+        }
+        List<Long> ids = new ArrayList<>(tuples.size());
+        long minTime = 0;
+        int os = 1;
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long time = tuple.getScore().longValue();
+            // count the entries sharing the min time, they are skipped by the next page
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        // keep the order of the feed
+        String idStr = StrUtil.join(",", ids);
+        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        fillBlogs(blogs);
+
+        ScrollResult r = new ScrollResult();
+        r.setList(blogs);
+        r.setOffset(os);
+        r.setMinTime(minTime);
+        return Result.ok(r);
+    }
+
+    @Override
+    public void fillBlogs(List<Blog> blogs) {
+        if (blogs == null || blogs.isEmpty()) {
+            return;
+        }
+        // authors of the whole page through the batch profile cache
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+        // like status of the whole page in one pipeline
+        List<Boolean> liked = isLiked(blogs);
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(liked.get(i));
+        }
+    }
+
+    @Override
+    public void scanImages(Consumer<String> consumer) {
+        long lastId = 0;
+        while (true) {
+            List<Blog> blogs = query().select("id", "images")
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + SystemConstants.IMAGE_GC_SCAN_BATCH_SIZE).list();
+            for (Blog blog : blogs) {
+                if (StrUtil.isBlank(blog.getImages())) {
+                    continue;
+                }
+                for (String image : blog.getImages().split(",")) {
+                    if (StrUtil.isNotBlank(image)) {
+                        consumer.accept(image.trim());
+                    }
+                }
+            }
+            if (blogs.size() < SystemConstants.IMAGE_GC_SCAN_BATCH_SIZE) {
+                break;
+            }
+            lastId = blogs.get(blogs.size() - 1).getId();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startImageGc() {
+        imageGarbageCollector.start(this::scanImages);
+    }
+
+    /**
+     * Resolve whether the current user liked each blog, with one ZSCORE per blog sent in a single pipeline
+     * @param blogs the blogs to check
+     * @return like status aligned with the given blogs, all false if nobody logged in
+     */
+    private List<Boolean> isLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            return Collections.nCopies(blogs.size(), false);
+        }
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        List<Boolean> liked = new ArrayList<>(blogs.size());
+        for (Object score : scores) {
+            liked.add(score != null);
+        }
+        return liked;
+    }
 }
@@ -1,29 +1,61 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.KeysetCursor;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.ShopCatalog;
+import com.hmdp.utils.ShopChangedEvent;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSuggestIndex;
+import com.hmdp.utils.ShopTypeIdCache;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
-import static java.lang.Thread.sleep;
+import static com.hmdp.utils.SystemConstants.SHOP_NEARBY_RADIUS_METERS;
 
 /**
  * <p>
@@ -33,6 +65,7 @@ import static java.lang.Thread.sleep;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -42,6 +75,31 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisLockClient lockClient;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private ShopSuggestIndex shopSuggestIndex;
+
+    @Resource
+    private ShopTypeIdCache shopTypeIdCache;
+
+    @Resource
+    private ShopCatalog shopCatalog;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    // local: the in-JVM index, redis: GEORADIUS on the shop GEO keys
+    @Value("${hmdp.shop.nearby-source:local}")
+    private String nearbySource;
+
     @Override
     public Result queryById(Long id) {
         // query shop with pass-through cache
@@ -86,24 +144,24 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // If expired, try to refresh it
         String lockKey = LOCK_SHOP_KEY + id;
 
-        // Rebuild the cache with mutex
-        boolean triedLock = tryLock(lockKey);
-
-        // Check if the shop data is already being refreshed by another thread
-        if (triedLock) {
-            // If not being refreshed, apply a thread to refresh the cache
-            CACHE_REBUILD_EXECUTOR.execute(() -> {
+        // Apply a thread to refresh the cache, it takes the lock itself since the lock belongs to its thread
+        CACHE_REBUILD_EXECUTOR.execute(() -> {
+            ILock lock = lockClient.getLock(lockKey);
+            try {
+                // Check if the shop data is already being refreshed by another thread
+                if (!lock.tryLock(0, TimeUnit.SECONDS)) {
+                    return;
+                }
                 try {
                     this.saveShopToRedis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
                 } finally {
                     // Unlock the shop data in Redis
-                    unlock(lockKey);
+                    lock.unlock();
                 }
-            });
-
-        }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
 
         // If the shop data is being refreshed, return the shop data out of expiration time
         return shop;
@@ -124,17 +182,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return null;
         }
 
-        // 4. 缓存未命中，尝试加锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        // 4. 缓存未命中，尝试加锁，同一节点的线程在本地排队，其他节点的在Redis上等待
+        ILock lock = lockClient.getLock(LOCK_SHOP_KEY + id);
 
         try {
-            boolean isLock = tryLock(lockKey);
-            if (!isLock) {
-                // 获取锁失败，休眠后递归重试（防止缓存击穿）
-                sleep(50);
+            if (!lock.tryLock(1, TimeUnit.SECONDS)) {
+                // 获取锁超时，重新查询（防止缓存击穿）
                 return queryWithMutex(id);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
 
+        try {
             // 5. 🔁 【缓存双查】加锁成功后再次检查缓存是否已经被别的线程填充
             String cacheAgain = stringRedisTemplate.opsForValue().get(key);
             if (StrUtil.isNotBlank(cacheAgain)) {
@@ -161,10 +222,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                     TimeUnit.MINUTES);
             return null;
 
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         } finally {
-            unlock(lockKey);
+            // 只释放自己持有的锁
+            lock.unlock();
         }
     }
 
@@ -206,32 +266,327 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Transactional
     @Override
     public Result update(Shop shop) {
+        Long id = shop.getId();
+        if (id == null) {
+            // ID is null, return an error message
+            return Result.fail("商户ID不能为空");
+        }
+        // the old type and location, to move the shop in the GEO indexes
+        Shop old = getById(id);
+
         // Update the shop data in the database
         updateById(shop);
 
         // Delete the shop data from Redis cache
-        Long id = shop.getId();
-        if (id != null) {
-            // ID is not null, delete the cache
-            String key = CACHE_SHOP_KEY + id;
-            stringRedisTemplate.delete(key);
-            return Result.ok();
+        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+
+        if (old != null) {
+            Long typeId = shop.getTypeId() != null ? shop.getTypeId() : old.getTypeId();
+            if (!typeId.equals(old.getTypeId())) {
+                stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), id.toString());
+            }
+            // the shop after the update, for the in-JVM indexes
+            Shop updated = BeanUtil.copyProperties(old, Shop.class);
+            BeanUtil.copyProperties(shop, updated, CopyOptions.create().ignoreNullValue());
+            addShopGeo(updated);
+            eventPublisher.publishEvent(new ShopChangedEvent(updated, old.getTypeId()));
+        }
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public void saveShop(Shop shop) {
+        save(shop);
+        addShopGeo(shop);
+        eventPublisher.publishEvent(new ShopChangedEvent(shop, null));
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        if (!isValidPage(current)) {
+            return Result.fail("无效的页码");
+        }
+        // out of the range Redis GEO accepts, and far from any cell of the index
+        if (!(Math.abs(x) <= 180) || !(Math.abs(y) <= SystemConstants.GEO_MAX_LATITUDE)) {
+            return Result.fail("无效的坐标");
+        }
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        List<Long> ids = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        Map<Long, Double> distances = new HashMap<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        if ("redis".equals(nearbySource)) {
+            nearbyFromRedis(typeId, x, y, from, end, ids, distances);
+        } else {
+            // the nearest shops up to the end of the page from the index in this JVM
+            ShopGeoIndex.Hits hits = shopGeoIndex.nearest(typeId, x, y, SHOP_NEARBY_RADIUS_METERS, end);
+            for (int i = from; i < hits.size(); i++) {
+                ids.add(hits.id(i));
+                distances.put(hits.id(i), hits.distance(i));
+            }
         }
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Shop> shops = queryShops(ids);
+        shops.forEach(shop -> shop.setDistance(distances.get(shop.getId())));
+        return Result.ok(shops);
+    }
 
-        // ID is null, return an error message
-        return Result.fail("商户ID不能为空");
+    private void nearbyFromRedis(Integer typeId, Double x, Double y, int from, int end,
+                                 List<Long> ids, Map<Long, Double> distances) {
+        // the nearest shops up to the end of the page, sorted by distance in Redis
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                SHOP_GEO_KEY + typeId,
+                new Circle(new Point(x, y), new Distance(SHOP_NEARBY_RADIUS_METERS, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        if (results == null || results.getContent().size() <= from) {
+            return;
+        }
+        // slice the page
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result
+                : results.getContent().subList(from, results.getContent().size())) {
+            Long id = Long.valueOf(result.getContent().getName());
+            ids.add(id);
+            distances.put(id, result.getDistance().getValue());
+        }
+    }
 
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, String cursor) {
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        if (cursor != null) {
+            // keyset pagination on id
+            KeysetCursor seek = KeysetCursor.decode(cursor);
+            if (seek == null && StrUtil.isNotBlank(cursor)) {
+                return Result.fail("无效的分页游标");
+            }
+            List<Long> ids = shopTypeIdCache.after(typeId.longValue(), seek == null ? null : seek.getId(),
+                    size, this::queryShopIdsByType);
+            return Result.ok(new CursorResult(queryShops(ids), KeysetCursor.next(ids, size, id -> id, id -> id)));
+        }
+        if (!isValidPage(current)) {
+            return Result.fail("无效的页码");
+        }
+        List<Long> ids = shopTypeIdCache.page(typeId.longValue(), (current - 1) * size, size, this::queryShopIdsByType);
+        return Result.ok(queryShops(ids));
+    }
+
+    private List<Long> queryShopIdsByType(Long typeId) {
+        return query().select("id").eq("type_id", typeId).orderByAsc("id").list()
+                .stream().map(Shop::getId).collect(Collectors.toList());
     }
 
-    // lock shop data in Redis
-    private boolean tryLock(String key) {
-        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(success);
+    @Override
+    public Result queryShopByFilter(Long typeId, String area, Long minPrice, Long maxPrice,
+                                    String sortBy, Integer current) {
+        if (!isValidPage(current)) {
+            return Result.fail("无效的页码");
+        }
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        int from = (current - 1) * size;
+        if (!ShopCatalog.SORT_BY_SOLD.equals(sortBy) && !ShopCatalog.SORT_BY_COMMENTS.equals(sortBy)) {
+            sortBy = ShopCatalog.SORT_BY_SCORE;
+        }
+        if (shopCatalog.isLoaded()) {
+            return Result.ok(queryShops(shopCatalog.query(typeId, area, minPrice, maxPrice, sortBy, from, size)));
+        }
+        // the catalog is still loading
+        List<Shop> shops = query().eq(typeId != null, "type_id", typeId)
+                .eq(area != null, "area", area)
+                .ge(minPrice != null, "avg_price", minPrice)
+                .le(maxPrice != null, "avg_price", maxPrice)
+                .orderByDesc(sortBy).orderByAsc("id")
+                .last("LIMIT " + from + "," + size).list();
+        return Result.ok(shops);
     }
 
-    // unlock shop data in Redis
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    @Override
+    public Result queryShopByName(String name, Integer current, String cursor) {
+        if (cursor != null) {
+            // keyset pagination on (score << 32 | sold, id)
+            KeysetCursor seek = KeysetCursor.decode(cursor);
+            if (seek == null && StrUtil.isNotBlank(cursor)) {
+                return Result.fail("无效的分页游标");
+            }
+            ShopNameIndex.Matches matches = shopNameIndex.searchAfter(name, seek, SystemConstants.MAX_PAGE_SIZE);
+            return Result.ok(new CursorResult(queryShops(matches.getIds()), matches.getNext()));
+        }
+        if (!isValidPage(current)) {
+            return Result.fail("无效的页码");
+        }
+        ShopNameIndex.Matches matches = shopNameIndex.search(name,
+                (current - 1) * SystemConstants.MAX_PAGE_SIZE, SystemConstants.MAX_PAGE_SIZE);
+        return Result.ok(queryShops(matches.getIds()));
+    }
+
+    // offset pagination sizes its buffers by the page, deep pages go by cursor
+    private static boolean isValidPage(Integer current) {
+        return current != null && current >= 1 && current <= SystemConstants.MAX_PAGE;
+    }
+
+    @Override
+    public List<Shop> queryShops(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // fetch all cached shops with one MGET
+        List<String> keys = ids.stream().map(id -> CACHE_SHOP_KEY + id).collect(Collectors.toList());
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+
+        Map<Long, Shop> found = new HashMap<>(ids.size());
+        List<Long> missed = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                found.put(ids.get(i), parseCachedShop(json));
+            } else if (json == null) {
+                // "" is the cached null of a shop that doesn't exist
+                missed.add(ids.get(i));
+            }
+        }
+
+        // load the misses with one query and write them back in one pipeline
+        if (!missed.isEmpty()) {
+            List<Shop> loaded = listByIds(missed);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Shop shop : loaded) {
+                    conn.setEx(CACHE_SHOP_KEY + shop.getId(),
+                            TimeUnit.MINUTES.toSeconds(CACHE_SHOP_TTL), JSONUtil.toJsonStr(shop));
+                }
+                return null;
+            });
+            loaded.forEach(shop -> found.put(shop.getId(), shop));
+        }
+
+        // keep the order of the given ids
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = found.get(id);
+            if (shop != null) {
+                shops.add(shop);
+            }
+        }
+        return shops;
+    }
+
+    // cache:shop:{id} holds a plain shop, or a shop with logical expiration written by saveShopToRedis
+    private static Shop parseCachedShop(String json) {
+        JSONObject obj = JSONUtil.parseObj(json);
+        Object data = obj.get("data");
+        if (data instanceof JSONObject && obj.containsKey("expireTime")) {
+            return ((JSONObject) data).toBean(Shop.class);
+        }
+        return obj.toBean(Shop.class);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadShopIndexesOnStartup() {
+        try {
+            loadShopGeo();
+        } catch (Exception e) {
+            log.error("加载商铺GEO索引失败", e);
+        }
+        try {
+            loadShopNames();
+        } catch (Exception e) {
+            log.error("加载商铺名称索引失败", e);
+        }
+        try {
+            loadShopCatalog();
+        } catch (Exception e) {
+            log.error("加载商铺目录失败", e);
+        }
+        try {
+            warmUpShopTypes();
+        } catch (Exception e) {
+            log.error("预热商铺分类列表失败", e);
+        }
+    }
+
+    @Override
+    public void loadShopCatalog() {
+        // changes committed while loading are in the stream after this id
+        String fromId = shopCatalog.lastChangeId();
+        int total = scanShops(shops -> shops.forEach(shopCatalog::put),
+                "id", "type_id", "area", "avg_price", "score", "sold", "comments");
+        shopCatalog.follow(fromId);
+        log.info("loaded {} shops into the catalog", total);
+    }
+
+    @Override
+    public void warmUpShopTypes() {
+        List<Long> typeIds = query().select("DISTINCT type_id").list()
+                .stream().map(Shop::getTypeId).collect(Collectors.toList());
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        for (Long typeId : typeIds) {
+            // the ids of the type, and the shops of its first pages in the entity cache
+            queryShops(shopTypeIdCache.page(typeId, 0, size * SystemConstants.SHOP_TYPE_WARM_PAGES,
+                    this::queryShopIdsByType));
+        }
+        log.info("warmed up the first pages of {} shop types", typeIds.size());
+    }
+
+    @Override
+    public void loadShopGeo() {
+        int total = scanShops(shops -> {
+            // one GEOADD per type per batch, all in one pipeline
+            Map<Long, Map<String, Point>> pointsOfType = new HashMap<>();
+            for (Shop shop : shops) {
+                if (shop.getX() != null && shop.getY() != null) {
+                    shopGeoIndex.put(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY());
+                    pointsOfType.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                            .put(shop.getId().toString(), new Point(shop.getX(), shop.getY()));
+                }
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                pointsOfType.forEach((typeId, points) -> conn.geoAdd(SHOP_GEO_KEY + typeId, points));
+                return null;
+            });
+        }, "id", "type_id", "x", "y");
+        log.info("loaded {} shops into the GEO indexes", total);
+    }
+
+    @Override
+    public void loadShopNames() {
+        int total = scanShops(shops -> shops.forEach(shop -> {
+            shopNameIndex.put(shop.getId(), shop.getName(), shop.getScore(), shop.getSold());
+            shopSuggestIndex.put(shop.getId(), shop.getName(), shop.getScore(), shop.getSold());
+        }), "id", "name", "score", "sold");
+        shopNameIndex.markLoaded();
+        shopSuggestIndex.rebuild();
+        log.info("loaded {} shops into the name index {}", total, shopNameIndex.stats());
+    }
+
+    // keyset scan on the primary key in batches, only the given columns
+    private int scanShops(Consumer<List<Shop>> consumer, String... columns) {
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<Shop> shops = query().select(columns)
+                    .gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + SystemConstants.SHOP_GEO_LOAD_BATCH_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            consumer.accept(shops);
+            total += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < SystemConstants.SHOP_GEO_LOAD_BATCH_SIZE) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    private void addShopGeo(Shop shop) {
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                new Point(shop.getX(), shop.getY()), shop.getId().toString());
     }
 
     // save shop data in Redis
@@ -4,6 +4,8 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -12,15 +14,26 @@ import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -36,6 +49,8 @@ import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 @Service
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
 
+    private static final DateTimeFormatter SIGN_MONTH_FORMATTER = DateTimeFormatter.ofPattern(":yyyyMM");
+
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
@@ -97,4 +112,90 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         return Result.ok(token);
     }
+
+    @Override
+    public List<UserDTO> queryUserDTOs(List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // fetch all cached profiles with one MGET
+        List<String> keys = ids.stream().map(id -> CACHE_USER_KEY + id).collect(Collectors.toList());
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+
+        Map<Long, UserDTO> found = new HashMap<>(ids.size());
+        List<Long> missed = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                found.put(ids.get(i), JSONUtil.toBean(json, UserDTO.class));
+            } else {
+                missed.add(ids.get(i));
+            }
+        }
+
+        // load the misses with one query and write them back in one pipeline
+        if (!missed.isEmpty()) {
+            List<UserDTO> loaded = listByIds(missed).stream()
+                    .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                    .collect(Collectors.toList());
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (UserDTO userDTO : loaded) {
+                    conn.setEx(CACHE_USER_KEY + userDTO.getId(),
+                            TimeUnit.MINUTES.toSeconds(CACHE_USER_TTL), JSONUtil.toJsonStr(userDTO));
+                }
+                return null;
+            });
+            loaded.forEach(userDTO -> found.put(userDTO.getId(), userDTO));
+        }
+
+        // keep the order of the given ids
+        List<UserDTO> userDTOs = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            UserDTO userDTO = found.get(id);
+            if (userDTO != null) {
+                userDTOs.add(userDTO);
+            }
+        }
+        return userDTOs;
+    }
+
+    @Override
+    public Result sign() {
+        // 一个用户一个月一个bitmap，第n天对应第n-1位
+        LocalDateTime now = LocalDateTime.now();
+        stringRedisTemplate.opsForValue().setBit(signKey(UserHolder.getUser().getId(), now), now.getDayOfMonth() - 1, true);
+        return Result.ok();
+    }
+
+    @Override
+    public Result signCount() {
+        LocalDateTime now = LocalDateTime.now();
+        int dayOfMonth = now.getDayOfMonth();
+        // 一次BITFIELD取出本月截至今天的所有位，今天是最低位
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(signKey(UserHolder.getUser().getId(), now),
+                BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(dayOfMonth)).valueAt(0));
+        if (result == null || result.isEmpty() || result.get(0) == null) {
+            return Result.ok(0);
+        }
+        long bits = result.get(0);
+        // not signed in yet today, the streak up to yesterday still counts
+        if ((bits & 1) == 0) {
+            bits >>>= 1;
+        }
+        // the streak is the run of trailing ones
+        return Result.ok(Long.numberOfTrailingZeros(~bits));
+    }
+
+    @Override
+    public Result signTotal() {
+        byte[] key = signKey(UserHolder.getUser().getId(), LocalDateTime.now()).getBytes(StandardCharsets.UTF_8);
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(key));
+        return Result.ok(count == null ? 0 : count);
+    }
+
+    // sign:{userId}:{yyyyMM}
+    private static String signKey(Long userId, LocalDateTime now) {
+        return USER_SIGN_KEY + userId + now.format(SIGN_MONTH_FORMATTER);
+    }
 }
@@ -1,10 +1,68 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.OrderTimeoutScheduler;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockKeys;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.ORDER_BATCH_LINGER_MILLIS;
+import static com.hmdp.utils.SystemConstants.ORDER_BATCH_SIZE;
 
 /**
  * <p>
@@ -14,7 +72,552 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_TAKE_SCRIPT;
+
+    static {
+        SECKILL_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_take.lua"));
+        SECKILL_TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> SECKILL_RETURN_SCRIPT;
+
+    static {
+        SECKILL_RETURN_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_return.lua"));
+        SECKILL_RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final long ORDER_LOCK_WAIT_SECONDS = 5;
+    private static final long STOCK_RETURN_RETRY_SECONDS = 10;
+
+    private static final int ORDER_STATUS_UNPAID = 1;
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    private static final String[] SECKILL_ERRORS = {null, "库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束", "优惠券不存在"};
+
+    // orders left unacknowledged by a crashed consumer longer than this are claimed by another one
+    private static final Duration PENDING_CLAIM_IDLE = Duration.ofSeconds(60);
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private OrderTimeoutScheduler timeoutScheduler;
+
+    @Resource
+    private RedisLockClient lockClient;
+
+    @Value("${hmdp.order.pay-timeout-minutes:15}")
+    private long payTimeoutMinutes;
+
+    // the transactional proxy of this service
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    // consumer name unique per process, so a restarted node leaves its old pending orders to be claimed
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final ExecutorService seckillOrderExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("seckill-order-", true));
+
+    private volatile boolean running = true;
+
+    private final Map<Long, SeckillInfo> seckillInfos = new ConcurrentHashMap<>();
+
+    // users of cancelled orders whose Redis stock is still to be returned, by voucher
+    private final Map<Long, Set<Long>> pendingStockReturns = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService stockReturnExecutor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("seckill-stock-return-", true));
+
+    @PostConstruct
+    private void init() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(bytes(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP, the group is already there
+            log.debug("consumer group {} of {} exists", SECKILL_ORDER_GROUP, SECKILL_ORDER_STREAM);
+        }
+        seckillOrderExecutor.submit(new VoucherOrderHandler());
+        timeoutScheduler.start(this::handleTimeoutOrders);
+        stockReturnExecutor.scheduleWithFixedDelay(this::retryStockReturns,
+                STOCK_RETURN_RETRY_SECONDS, STOCK_RETURN_RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        stockReturnExecutor.shutdownNow();
+    }
+
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        // sold out and over-rate requests are already turned away by SeckillAdmissionInterceptor
+        SeckillInfo info = seckillInfo(voucherId);
+        if (info == null) {
+            return Result.fail(SECKILL_ERRORS[5]);
+        }
+        long now = System.currentTimeMillis();
+        if (info.begin != null && now < info.begin) {
+            return Result.fail(SECKILL_ERRORS[3]);
+        }
+        if (info.end != null && now > info.end) {
+            return Result.fail(SECKILL_ERRORS[4]);
+        }
+        Long userId = UserHolder.getUser().getId();
+        int home = SeckillStockKeys.homeBucket(userId, info.buckets);
+        // one order per user and the stock of the user's home bucket, in one script on the shard of that bucket
+        Long r = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                Arrays.asList(SeckillStockKeys.stockKey(voucherId, home), SeckillStockKeys.orderKey(voucherId, home)),
+                userId.toString());
+        int code = r == null ? 5 : r.intValue();
+        if (code == 1) {
+            if (takeFromOtherBuckets(voucherId, home, info.buckets)) {
+                code = 0;
+            } else {
+                // every bucket is empty, the user may order again once stock is returned
+                stringRedisTemplate.opsForSet().remove(SeckillStockKeys.orderKey(voucherId, home), userId.toString());
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+        }
+        if (code != 0) {
+            return Result.fail(SECKILL_ERRORS[code]);
+        }
+        long orderId = redisIdWorker.nextSegmentId("order");
+        long payDeadline = now + TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+        try {
+            // the deadline first, an order queued without one would never time out; MySQL is left to the consumer
+            stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, String.valueOf(orderId), payDeadline);
+            Map<String, String> order = new HashMap<>(4);
+            order.put("userId", userId.toString());
+            order.put("voucherId", voucherId.toString());
+            order.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ORDER_STREAM).ofMap(order));
+        } catch (RuntimeException e) {
+            log.error("failed to queue order {} of user {}", orderId, userId, e);
+            cancelQueuing(voucherId, userId, orderId);
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        timeoutScheduler.schedule(orderId, payDeadline);
+        return Result.ok(orderId);
+    }
+
+    // the home bucket of the user is empty, take from the next ones in turn, each on its own shard
+    private boolean takeFromOtherBuckets(Long voucherId, int home, int buckets) {
+        for (int i = 1; i < buckets; i++) {
+            String key = SeckillStockKeys.stockKey(voucherId, (home + i) % buckets);
+            Long taken = stringRedisTemplate.execute(SECKILL_TAKE_SCRIPT, Collections.singletonList(key));
+            if (taken != null && taken == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // undo a seckill whose order could not be queued, best effort, the stock stays taken if Redis is gone
+    private void cancelQueuing(Long voucherId, Long userId, long orderId) {
+        try {
+            stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, String.valueOf(orderId));
+            returnSeckillStock(voucherId, Collections.singletonList(userId));
+        } catch (RuntimeException e) {
+            log.error("failed to return the stock of order {} of user {}", orderId, userId, e);
+        }
+    }
+
+    @Override
+    public int returnSeckillStock(Long voucherId, Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        SeckillInfo info = seckillInfo(voucherId);
+        int buckets = info == null ? 1 : info.buckets;
+        // the order of a user is in the home bucket, whichever bucket the stock came from, and so goes the stock back
+        Map<Integer, List<String>> usersOfBucket = userIds.stream().collect(Collectors.groupingBy(
+                userId -> SeckillStockKeys.homeBucket(userId, buckets),
+                Collectors.mapping(String::valueOf, Collectors.toList())));
+        int returned = 0;
+        for (Map.Entry<Integer, List<String>> entry : usersOfBucket.entrySet()) {
+            List<String> keys = Arrays.asList(SeckillStockKeys.stockKey(voucherId, entry.getKey()),
+                    SeckillStockKeys.orderKey(voucherId, entry.getKey()));
+            Long n = stringRedisTemplate.execute(SECKILL_RETURN_SCRIPT, keys, entry.getValue().toArray());
+            returned += n == null ? 0 : n.intValue();
+        }
+        if (returned > 0) {
+            soldOutRegistry.reset(voucherId);
+        }
+        return returned;
+    }
+
+    // the bucket count and sale window never change once a seckill voucher is created, so they are read once per node
+    private SeckillInfo seckillInfo(Long voucherId) {
+        SeckillInfo info = seckillInfos.get(voucherId);
+        if (info != null) {
+            return info;
+        }
+        Map<Object, Object> hash = stringRedisTemplate.opsForHash().entries(SECKILL_VOUCHER_KEY + voucherId);
+        if (hash.isEmpty()) {
+            return null;
+        }
+        info = new SeckillInfo(
+                hash.containsKey("buckets") ? Integer.parseInt(hash.get("buckets").toString()) : 1,
+                hash.containsKey("begin") ? Long.valueOf(hash.get("begin").toString()) : null,
+                hash.containsKey("end") ? Long.valueOf(hash.get("end").toString()) : null);
+        seckillInfos.put(voucherId, info);
+        return info;
+    }
+
+    private static class SeckillInfo {
+        private final int buckets;
+        private final Long begin;
+        private final Long end;
+
+        SeckillInfo(int buckets, Long begin, Long end) {
+            this.buckets = buckets;
+            this.begin = begin;
+            this.end = end;
+        }
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrder(VoucherOrder voucherOrder) {
+        // a redelivered order is already there by its id, a cancelled order doesn't keep the user from buying again
+        Integer count = query().eq("id", voucherOrder.getId())
+                .or(w -> w.eq("user_id", voucherOrder.getUserId())
+                        .eq("voucher_id", voucherOrder.getVoucherId())
+                        .ne("status", ORDER_STATUS_CANCELLED))
+                .count();
+        if (count > 0) {
+            log.warn("duplicate voucher order {} of user {}", voucherOrder.getId(), voucherOrder.getUserId());
+            return;
+        }
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                .update();
+        if (!success) {
+            log.error("voucher {} out of stock in database for order {}", voucherOrder.getVoucherId(), voucherOrder.getId());
+            return;
+        }
+        save(voucherOrder);
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            // one multi-row insert, any error but a duplicate id fails the batch
+            List<VoucherOrder> orders = entry.getValue();
+            int inserted;
+            try {
+                inserted = getBaseMapper().insertBatch(orders);
+            } catch (DuplicateKeyException e) {
+                // ids already there are redeliveries, insert only the rest
+                Set<Long> persisted = query().select("id")
+                        .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                        .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                orders = orders.stream().filter(o -> !persisted.contains(o.getId())).collect(Collectors.toList());
+                if (orders.isEmpty()) {
+                    continue;
+                }
+                inserted = getBaseMapper().insertBatch(orders);
+            }
+            // one aggregated decrement, exactly by the orders really inserted
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey()).ge("stock", inserted)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("voucher " + entry.getKey() + " has less than " + inserted + " stock in database");
+            }
+        }
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // lock the orders still unpaid, a concurrent payment either commits first or waits for the cancellation
+        List<VoucherOrder> unpaid = query().in("id", orderIds).eq("status", ORDER_STATUS_UNPAID)
+                .last("FOR UPDATE").list();
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        List<Long> ids = unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        update().set("status", ORDER_STATUS_CANCELLED).in("id", ids).update();
+        // one aggregated stock return per voucher
+        Map<Long, Long> countOfVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countOfVoucher.forEach((voucherId, count) -> seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update());
+        return unpaid;
+    }
+
+    private void handleTimeoutOrders(List<Long> orderIds) {
+        // orders still queued in the stream are not in MySQL yet, look at them again later
+        Set<Long> persisted = query().select("id").in("id", orderIds).list().stream()
+                .map(VoucherOrder::getId).collect(Collectors.toSet());
+        long now = System.currentTimeMillis();
+        long payTimeoutMillis = TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+        for (Long orderId : orderIds) {
+            if (persisted.contains(orderId)) {
+                continue;
+            }
+            if (RedisIdWorker.createdAtMillis(orderId) + 2 * payTimeoutMillis < now) {
+                log.error("timed out order {} never reached the database, giving up", orderId);
+            } else {
+                timeoutScheduler.reschedule(orderId, now + TimeUnit.MINUTES.toMillis(1));
+            }
+        }
+        if (persisted.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> cancelled = proxy.cancelUnpaidOrders(new ArrayList<>(persisted));
+        // Redis stock back once MySQL is committed, one script per voucher
+        cancelled.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId,
+                        Collectors.mapping(VoucherOrder::getUserId, Collectors.toList())))
+                .forEach(this::returnSeckillStockOrRetry);
+        if (!cancelled.isEmpty()) {
+            log.info("cancelled {} unpaid voucher orders", cancelled.size());
+        }
+    }
+
+    // the orders are cancelled in MySQL already and won't be found unpaid again, so a failed return is retried alone,
+    // the script returns the stock of each user once however often it runs
+    private void returnSeckillStockOrRetry(Long voucherId, Collection<Long> userIds) {
+        try {
+            returnSeckillStock(voucherId, userIds);
+        } catch (Exception e) {
+            log.error("failed to return the seckill stock of {} cancelled orders of voucher {}, retrying later",
+                    userIds.size(), voucherId, e);
+            pendingStockReturns.compute(voucherId, (k, pending) -> {
+                Set<Long> merged = pending == null ? new HashSet<>() : pending;
+                merged.addAll(userIds);
+                return merged;
+            });
+        }
+    }
+
+    private void retryStockReturns() {
+        for (Long voucherId : pendingStockReturns.keySet()) {
+            Set<Long> userIds = pendingStockReturns.remove(voucherId);
+            if (userIds != null) {
+                returnSeckillStockOrRetry(voucherId, userIds);
+            }
+        }
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private long lastClaim;
+
+        @Override
+        public void run() {
+            // orders of this consumer left by the last failure, then stale ones of crashed consumers
+            handlePendingList();
+            claimStaleOrders();
+            while (running) {
+                try {
+                    List<MapRecord<String, Object, Object>> batch = readBatch();
+                    if (!batch.isEmpty()) {
+                        handleOrders(batch);
+                    }
+                    if (System.currentTimeMillis() - lastClaim > PENDING_CLAIM_IDLE.toMillis()) {
+                        // orders of this consumer that failed one by one, then those of crashed consumers
+                        handlePendingList();
+                        claimStaleOrders();
+                    }
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        // group commit: wait for the first order, then gather more until the batch is full or the linger time is up
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>();
+            long deadline = 0;
+            while (batch.size() < ORDER_BATCH_SIZE) {
+                Duration block;
+                if (batch.isEmpty()) {
+                    block = Duration.ofSeconds(2);
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    block = Duration.ofMillis(remaining);
+                }
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(ORDER_BATCH_SIZE - batch.size()).block(block),
+                        StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.currentTimeMillis() + ORDER_BATCH_LINGER_MILLIS;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
+        // re-read the orders delivered to this consumer but not acknowledged, one pass, the ones failing again
+        // stay pending for the next pass
+        private void handlePendingList() {
+            String offset = "0";
+            while (running) {
+                try {
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(ORDER_BATCH_SIZE),
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from(offset))
+                    );
+                    if (list == null || list.isEmpty()) {
+                        return;
+                    }
+                    handleOrders(list);
+                    offset = list.get(list.size() - 1).getId().getValue();
+                } catch (Exception e) {
+                    log.error("处理pending订单异常", e);
+                    sleepQuietly();
+                }
+            }
+        }
+
+        // take over the orders a crashed consumer left unacknowledged for too long
+        private void claimStaleOrders() {
+            lastClaim = System.currentTimeMillis();
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), 100);
+                List<RecordId> stale = new ArrayList<>();
+                for (PendingMessage message : pending) {
+                    if (!consumerName.equals(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().compareTo(PENDING_CLAIM_IDLE) >= 0) {
+                        stale.add(message.getId());
+                    }
+                }
+                if (stale.isEmpty()) {
+                    return;
+                }
+                List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xClaim(bytes(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP,
+                                consumerName, PENDING_CLAIM_IDLE, stale.toArray(new RecordId[0])));
+                if (claimed == null) {
+                    return;
+                }
+                log.info("claimed {} stale voucher orders", claimed.size());
+                List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+                for (ByteRecord record : claimed) {
+                    Map<Object, Object> value = new HashMap<>();
+                    record.getValue().forEach((k, v) -> value.put(string(k), string(v)));
+                    records.add(MapRecord.create(SECKILL_ORDER_STREAM, value).withId(record.getId()));
+                }
+                handleOrders(records);
+            } catch (Exception e) {
+                log.error("认领超时订单异常", e);
+            }
+        }
+
+        private void handleOrders(List<MapRecord<String, Object, Object>> records) {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            }
+            List<RecordId> done = new ArrayList<>(records.size());
+            try {
+                proxy.createVoucherOrders(voucherOrders);
+                records.forEach(record -> done.add(record.getId()));
+            } catch (Exception e) {
+                // the batch is rolled back, persist the orders one by one so a single bad order can't block the rest
+                log.warn("批量创建订单失败，逐条重试", e);
+                for (int i = 0; i < records.size(); i++) {
+                    try {
+                        createVoucherOrderLocked(voucherOrders.get(i));
+                        done.add(records.get(i).getId());
+                    } catch (Exception ex) {
+                        // left unacknowledged, the pending list retries it
+                        log.error("创建订单{}失败", voucherOrders.get(i).getId(), ex);
+                    }
+                }
+            }
+            if (!done.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                        done.toArray(new RecordId[0]));
+            }
+        }
+
+        // the one-order-per-user check reads before it writes, consumers on other nodes may hold a claimed copy
+        private void createVoucherOrderLocked(VoucherOrder voucherOrder) {
+            ILock lock = lockClient.getLock(LOCK_ORDER_KEY + voucherOrder.getUserId());
+            boolean locked;
+            try {
+                locked = lock.tryLock(ORDER_LOCK_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while locking user " + voucherOrder.getUserId(), e);
+            }
+            if (!locked) {
+                // left unacknowledged, the pending list retries it
+                throw new IllegalStateException("user " + voucherOrder.getUserId() + " is locked by another consumer");
+            }
+            try {
+                proxy.createVoucherOrder(voucherOrder);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void sleepQuietly() {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,11 +8,27 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockKeys;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -27,14 +44,112 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息，静态信息走缓存
+        List<Voucher> vouchers = queryVoucherOfShopCached(shopId);
+        // 秒杀券的实时库存从Redis覆盖
+        overlaySeckillStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        evictVoucherCacheAfterCommit(voucher.getShopId());
+    }
+
+    // a query between the delete and the commit would cache the old list again, so the delete waits for the commit
+    private void evictVoucherCacheAfterCommit(Long shopId) {
+        String key = CACHE_SHOP_VOUCHER_KEY + shopId;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            stringRedisTemplate.delete(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                stringRedisTemplate.delete(key);
+            }
+        });
+    }
+
+    private List<Voucher> queryVoucherOfShopCached(Long shopId) {
+        String key = CACHE_SHOP_VOUCHER_KEY + shopId;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            return JSONUtil.toList(json, Voucher.class);
+        }
+        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // remember the bucket count of each seckill voucher, so the stock overlay needs no extra lookup
+        List<Voucher> seckillVouchers = vouchers.stream()
+                .filter(v -> v.getStock() != null)
+                .collect(Collectors.toList());
+        if (!seckillVouchers.isEmpty()) {
+            List<Object> buckets = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Voucher v : seckillVouchers) {
+                    conn.hGet(SECKILL_VOUCHER_KEY + v.getId(), "buckets");
+                }
+                return null;
+            });
+            for (int i = 0; i < seckillVouchers.size(); i++) {
+                Object n = buckets.get(i);
+                seckillVouchers.get(i).setStockBuckets(n == null ? 1 : Integer.valueOf(n.toString()));
+            }
+        }
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(vouchers), CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        return vouchers;
+    }
+
+    // read all stock keys of the page in one MGET, the stock of a split voucher is the sum of its buckets
+    private void overlaySeckillStock(List<Voucher> vouchers) {
+        List<String> keys = new ArrayList<>();
+        for (Voucher v : vouchers) {
+            if (v.getStock() != null) {
+                keys.addAll(SeckillStockKeys.of(v.getId(), bucketsOf(v)));
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        int i = 0;
+        for (Voucher v : vouchers) {
+            if (v.getStock() == null) {
+                continue;
+            }
+            int stock = 0;
+            boolean found = false;
+            for (int b = bucketsOf(v); b > 0; b--, i++) {
+                String s = stocks.get(i);
+                if (s != null) {
+                    stock += Integer.parseInt(s);
+                    found = true;
+                }
+            }
+            // keep the cached stock if the voucher was never loaded into Redis
+            if (found) {
+                v.setStock(stock);
+            }
+        }
+    }
+
+    private static int bucketsOf(Voucher voucher) {
+        return voucher.getStockBuckets() == null ? 1 : Math.max(voucher.getStockBuckets(), 1);
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -47,5 +162,29 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 保存库存及秒杀时间到Redis，秒杀下单只读写Redis，热门券的库存拆分到多个分桶
+        int buckets = bucketsOf(voucher);
+        List<String> stockKeys = SeckillStockKeys.of(voucher.getId(), buckets);
+        int[] stocks = SeckillStockKeys.split(voucher.getStock(), buckets);
+        for (int i = 0; i < buckets; i++) {
+            stringRedisTemplate.opsForValue().set(stockKeys.get(i), String.valueOf(stocks[i]));
+        }
+        Map<String, String> info = new HashMap<>(3);
+        info.put("buckets", String.valueOf(buckets));
+        if (voucher.getBeginTime() != null) {
+            info.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        }
+        if (voucher.getEndTime() != null) {
+            info.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        }
+        stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucher.getId(), info);
+        // 有库存了，清除各节点的售罄标记
+        soldOutRegistry.reset(voucher.getId());
+        // 店铺的优惠券列表变了，事务提交后删除缓存
+        evictVoucherCacheAfterCommit(voucher.getShopId());
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
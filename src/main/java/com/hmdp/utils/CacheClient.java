@@ -1,6 +1,5 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
@@ -10,6 +9,8 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -27,8 +28,14 @@ public class CacheClient {
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // keys being rebuilt by this node
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    private final RedisLockClient lockClient;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisLockClient lockClient) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.lockClient = lockClient;
     }
 
     public void set(String key, Object value, Long expire, TimeUnit timeUnit) {
@@ -87,7 +94,52 @@ public class CacheClient {
         if (StrUtil.isBlank(json)) {
             return null;
         }
+        return readWithLogicalExpire(key, json, id, type, dbFallback, expire, timeUnit);
+    }
+
+    /**
+     * Logical expiration for keys that are not warmed up beforehand. A miss is loaded from the database by one
+     * thread under the lock of the key while the others wait, and an id not in the database is cached as an empty
+     * value for {@link RedisConstants#CACHE_NULL_TTL} minutes
+     */
+    public <ID, R> R queryWithLogicalExpireOrLoad(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                                  Long expire, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            // an empty value, not in the database either
+            return StrUtil.isBlank(json) ? null : readWithLogicalExpire(key, json, id, type, dbFallback, expire, timeUnit);
+        }
+        ILock lock = lockClient.getLock(lockKeyOf(key));
+        try {
+            if (!lock.tryLock(1, TimeUnit.SECONDS)) {
+                // the holder is slow, query again
+                return queryWithLogicalExpireOrLoad(keyPrefix, id, type, dbFallback, expire, timeUnit);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            // loaded by the thread that held the lock before
+            json = stringRedisTemplate.opsForValue().get(key);
+            if (json != null) {
+                return StrUtil.isBlank(json) ? null : readWithLogicalExpire(key, json, id, type, dbFallback, expire, timeUnit);
+            }
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            this.setWithLogicalExpire(key, r, expire, timeUnit);
+            return r;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    private <ID, R> R readWithLogicalExpire(String key, String json, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                            Long expire, TimeUnit timeUnit) {
         // If found, parse the shop data
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
@@ -99,41 +151,54 @@ public class CacheClient {
             return r;
         }
         // If expired, try to refresh it
-        String lockKey = LOCK_SHOP_KEY + id;
-
-        // Rebuild the cache with mutex
-        boolean triedLock = tryLock(lockKey);
-
-        // Check if the shop data is already being refreshed by another thread
-        if (triedLock) {
-            // If not being refreshed, apply a thread to refresh the cache
-            CACHE_REBUILD_EXECUTOR.execute(() -> {
-                try {
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key, r1, expire, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // Unlock the shop data in Redis
-                    unlock(lockKey);
-                }
-            });
-
+        String lockKey = lockKeyOf(key);
+
+        // One rebuild per key on this node, the other threads return the stale data right away
+        if (rebuilding.add(key)) {
+            try {
+                CACHE_REBUILD_EXECUTOR.execute(() -> rebuild(key, lockKey, id, dbFallback, expire, timeUnit));
+            } catch (RuntimeException e) {
+                rebuilding.remove(key);
+                throw e;
+            }
         }
 
         // If the shop data is being refreshed, return the shop data out of expiration time
         return r;
     }
 
-    // lock shop data in Redis
-    private boolean tryLock(String key) {
-        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(success);
+    // cache:shop:1 is locked by lock:shop:1, cache:blog:1 by lock:blog:1
+    private static String lockKeyOf(String key) {
+        return "lock:" + StrUtil.removePrefix(key, "cache:");
     }
 
-    // unlock shop data in Redis
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    // the lock is owned by the thread that takes it, so the rebuild thread locks and unlocks
+    private <ID, R> void rebuild(String key, String lockKey, ID id, Function<ID, R> dbFallback,
+                                 Long expire, TimeUnit timeUnit) {
+        ILock lock = lockClient.getLock(lockKey);
+        try {
+            // Rebuild the cache with mutex, skip it if another node is already at it
+            if (!lock.tryLock(0, TimeUnit.SECONDS)) {
+                return;
+            }
+            try {
+                R r1 = dbFallback.apply(id);
+                if (r1 == null) {
+                    // deleted meanwhile
+                    stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                } else {
+                    this.setWithLogicalExpire(key, r1, expire, timeUnit);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("缓存重建失败 {}", key, e);
+        } finally {
+            rebuilding.remove(key);
+        }
     }
 
 }
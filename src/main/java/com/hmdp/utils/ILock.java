@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reentrant lock shared by all nodes, owned by the thread that took it.
+ */
+public interface ILock {
+
+    /**
+     * Take the lock, kept alive by a watchdog until {@link #unlock()}
+     * @param waitTime how long to wait for the lock, 0 to try once
+     * @param unit     unit of the wait time
+     * @return true if the lock was taken
+     */
+    boolean tryLock(long waitTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Take the lock for a fixed lease, it expires after the lease even if not released
+     * @param waitTime  how long to wait for the lock, 0 to try once
+     * @param leaseTime how long the lock is held at most
+     * @param unit      unit of both times
+     * @return true if the lock was taken
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Release one hold of the lock
+     * @throws IllegalMonitorStateException if the current thread does not hold the lock, e.g. its lease ran out
+     */
+    void unlock();
+}
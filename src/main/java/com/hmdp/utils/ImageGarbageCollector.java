@@ -0,0 +1,287 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.dto.ImageGcReport;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import static com.hmdp.utils.SystemConstants.IMAGE_GC_INITIAL_DELAY_MINUTES;
+
+/**
+ * Deletes uploaded images that no blog refers to, left behind by abandoned drafts.
+ * <p>
+ * A run first walks the upload tree, one thread per top level directory, for files older than the grace period.
+ * Then it streams the images of all blogs into a sorted array of 64-bit fingerprints, so blogs saved during the
+ * walk still count, and the files whose fingerprint isn't there are orphans. Variants share the fingerprint of
+ * their image, and leftover temporary files are always orphans. Orphans are deleted at a limited rate, each one
+ * only if it hasn't been stored again since the walk, or just reported in a dry run. A blog saved after the scan
+ * touches its images through {@link ImageStore#touch} first, so they are kept too.
+ */
+@Slf4j
+@Component
+public class ImageGarbageCollector {
+
+    private static final String BLOGS_DIR = "blogs";
+    private static final String TMP_DIR = "tmp";
+    private static final int SAMPLE_SIZE = 100;
+    private static final Pattern VARIANT = Pattern.compile("_w\\d+$");
+
+    private final ImageStore imageStore;
+
+    @Value("${hmdp.image.gc.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.image.gc.dry-run:true}")
+    private boolean dryRun;
+
+    @Value("${hmdp.image.gc.grace-hours:24}")
+    private long graceHours;
+
+    @Value("${hmdp.image.gc.period-hours:6}")
+    private long periodHours;
+
+    @Value("${hmdp.image.gc.deletes-per-second:50}")
+    private double deletesPerSecond;
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("image-gc-", true));
+    private final ExecutorService walkers = Executors.newFixedThreadPool(
+            Math.min(4, Runtime.getRuntime().availableProcessors()), new NamedThreadFactory("image-gc-walk-", true));
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile ImageGcReport lastReport;
+
+    public ImageGarbageCollector(ImageStore imageStore) {
+        this.imageStore = imageStore;
+    }
+
+    /**
+     * Run periodically, if enabled
+     * @param referencedImages feeds the images of every blog to the consumer
+     */
+    public void start(Consumer<Consumer<String>> referencedImages) {
+        if (!enabled) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                collect(referencedImages, dryRun);
+            } catch (Exception e) {
+                log.error("清理孤儿图片失败", e);
+            }
+        }, IMAGE_GC_INITIAL_DELAY_MINUTES, TimeUnit.HOURS.toMinutes(periodHours), TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scheduler.shutdownNow();
+        walkers.shutdownNow();
+    }
+
+    public ImageGcReport lastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Find the orphans and delete them
+     * @param referencedImages feeds the images of every blog to the consumer
+     * @param dryRun           only report the orphans
+     * @throws IllegalStateException if a run is in progress
+     */
+    public ImageGcReport collect(Consumer<Consumer<String>> referencedImages, boolean dryRun)
+            throws IOException, InterruptedException {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("image gc is running");
+        }
+        try {
+            ImageGcReport report = new ImageGcReport();
+            report.setDryRun(dryRun);
+            report.setStartTime(LocalDateTime.now());
+            long begin = System.currentTimeMillis();
+            long cutoff = begin - TimeUnit.HOURS.toMillis(graceHours);
+
+            AtomicLong scanned = new AtomicLong();
+            Queue<Path> candidates = walk(cutoff, scanned);
+            report.setScannedFiles(scanned.get());
+
+            long[] referenced = fingerprints(referencedImages);
+            report.setReferencedImages(referenced.length);
+
+            List<Path> orphans = new ArrayList<>();
+            Path tmp = imageStore.root().resolve(TMP_DIR);
+            for (Path file : candidates) {
+                if (file.startsWith(tmp) || Arrays.binarySearch(referenced, fingerprint(nameOf(file))) < 0) {
+                    orphans.add(file);
+                }
+            }
+            orphans.sort(null);
+            long orphanBytes = 0;
+            for (Path file : orphans) {
+                orphanBytes += sizeOf(file);
+                if (report.getSample().size() < SAMPLE_SIZE) {
+                    report.getSample().add(nameOf(file));
+                }
+            }
+            report.setOrphanFiles(orphans.size());
+            report.setOrphanBytes(orphanBytes);
+
+            if (!dryRun) {
+                delete(orphans, tmp, cutoff, report);
+            }
+            report.setElapsedMillis(System.currentTimeMillis() - begin);
+            lastReport = report;
+            log.info("image gc {}: {} files, {} referenced images, {} orphans of {} bytes, {} deleted in {} ms",
+                    dryRun ? "dry run" : "run", report.getScannedFiles(), report.getReferencedImages(),
+                    report.getOrphanFiles(), report.getOrphanBytes(), report.getDeletedFiles(), report.getElapsedMillis());
+            return report;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // the files older than the cutoff, walking the directories of /blogs in parallel
+    private Queue<Path> walk(long cutoff, AtomicLong scanned) throws IOException, InterruptedException {
+        Queue<Path> candidates = new ConcurrentLinkedQueue<>();
+        SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                scanned.incrementAndGet();
+                if (attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < cutoff) {
+                    candidates.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warn("skipped {} in image gc: {}", file, e.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        List<Future<?>> walks = new ArrayList<>();
+        List<Path> roots = new ArrayList<>();
+        roots.add(imageStore.root().resolve(TMP_DIR));
+        Path blogs = imageStore.root().resolve(BLOGS_DIR);
+        if (Files.isDirectory(blogs)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(blogs)) {
+                children.forEach(roots::add);
+            }
+        }
+        for (Path root : roots) {
+            walks.add(walkers.submit(() -> {
+                Files.walkFileTree(root, visitor);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> walk : walks) {
+                walk.get();
+            }
+        } catch (ExecutionException e) {
+            walks.forEach(walk -> walk.cancel(true));
+            throw new IOException("failed to walk the image dir", e.getCause());
+        }
+        return candidates;
+    }
+
+    // sorted distinct fingerprints of the referenced images
+    private static long[] fingerprints(Consumer<Consumer<String>> referencedImages) {
+        long[][] holder = {new long[1024]};
+        int[] size = {0};
+        referencedImages.accept(image -> {
+            if (size[0] == holder[0].length) {
+                holder[0] = Arrays.copyOf(holder[0], size[0] * 2);
+            }
+            holder[0][size[0]++] = fingerprint(image);
+        });
+        long[] all = holder[0];
+        Arrays.sort(all, 0, size[0]);
+        int n = 0;
+        for (int i = 0; i < size[0]; i++) {
+            if (n == 0 || all[i] != all[n - 1]) {
+                all[n++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, n);
+    }
+
+    /**
+     * Fingerprint of an image name, or of a URL of it: the path from /blogs/ on, without the extension and the
+     * variant width, so an image and its variants match
+     */
+    static long fingerprint(String image) {
+        int from = image.indexOf("/" + BLOGS_DIR + "/");
+        String name = from < 0 ? image : image.substring(from);
+        int dot = name.lastIndexOf('.');
+        if (dot > name.lastIndexOf('/')) {
+            name = name.substring(0, dot);
+        }
+        return MurmurHash.hash64(VARIANT.matcher(name).replaceFirst(""));
+    }
+
+    private void delete(List<Path> orphans, Path tmp, long cutoff, ImageGcReport report) throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(deletesPerSecond, Math.max(1, (int) deletesPerSecond));
+        for (Path file : orphans) {
+            while (!bucket.tryAcquire()) {
+                Thread.sleep(10);
+            }
+            try {
+                long freed;
+                if (file.startsWith(tmp)) {
+                    freed = sizeOf(file);
+                    if (!Files.deleteIfExists(file)) {
+                        continue;
+                    }
+                } else {
+                    freed = imageStore.deleteIfOlderThan(nameOf(file), cutoff);
+                    if (freed < 0) {
+                        continue;
+                    }
+                }
+                report.setDeletedFiles(report.getDeletedFiles() + 1);
+                report.setDeletedBytes(report.getDeletedBytes() + freed);
+            } catch (IOException e) {
+                log.warn("failed to delete orphan image {}: {}", file, e.toString());
+            }
+        }
+    }
+
+    private String nameOf(Path file) {
+        return "/" + imageStore.root().relativize(file).toString().replace('\\', '/');
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
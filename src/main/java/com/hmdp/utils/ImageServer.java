@@ -0,0 +1,214 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.hmdp.utils.SystemConstants.IMAGE_CACHE_MAX_BYTES;
+import static com.hmdp.utils.SystemConstants.IMAGE_CACHE_MAX_FILE_SIZE;
+
+/**
+ * Serves the files of the {@link ImageStore} over HTTP, so a small setup needs no nginx in front.
+ * <p>
+ * Files are sent with Tomcat's sendfile, straight from the page cache to the socket, or with
+ * {@link FileChannel#transferTo} when the connector can't. Files up to {@link SystemConstants#IMAGE_CACHE_MAX_FILE_SIZE}
+ * are kept in a small LRU cache in memory instead, checked against the size and modification time of the file.
+ * <p>
+ * Content addressed images use their hash as a strong ETag and never change, other files get a weak ETag of size
+ * and modification time. If-None-Match, single byte ranges and If-Range are supported, a request for several ranges
+ * gets the whole file.
+ */
+@Slf4j
+@Component
+public class ImageServer {
+
+    private static final Pattern HASH_NAME = Pattern.compile("([0-9a-f]{64}(?:_w\\d+)?)\\.[a-z0-9]+");
+    // raster images only, svg may carry script
+    private static final Set<MediaType> IMAGE_TYPES = new HashSet<>(Arrays.asList(MediaType.IMAGE_JPEG,
+            MediaType.IMAGE_PNG, MediaType.IMAGE_GIF, MediaType.parseMediaType("image/webp")));
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    // request attributes of Tomcat's sendfile
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final ImageStore imageStore;
+
+    // small hot files, least recently used first
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedBytes;
+
+    public ImageServer(ImageStore imageStore) {
+        this.imageStore = imageStore;
+    }
+
+    /**
+     * Write an image to the response
+     * @param name name of the image, relative to the upload dir
+     */
+    public void serve(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // the browser must not guess a type, an image that sniffs like html would run in the site's origin
+        response.setHeader("X-Content-Type-Options", "nosniff");
+        Path file = imageStore.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = file == null ? null : Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            // not sendError, the error page would be behind the login interceptor
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long length = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        Matcher hash = HASH_NAME.matcher(file.getFileName().toString());
+        boolean immutable = hash.matches();
+        String etag = immutable ? "\"" + hash.group(1) + "\"" : "W/\"" + length + "-" + modified + "\"";
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, modified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, immutable ? "public, max-age=31536000, immutable" : "public, max-age=86400");
+        if (matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        MediaType type = MediaTypeFactory.getMediaType(file.getFileName().toString()).orElse(null);
+        if (type != null && IMAGE_TYPES.contains(type)) {
+            response.setContentType(type.toString());
+        } else {
+            // uploaded before the suffix allowlist, or put there by hand, never rendered inline
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment");
+        }
+
+        long start = 0, end = length;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        // a range of an older version of the file would be wrong, only strong validators qualify
+        if (range != null && (ifRange == null || immutable && ifRange.equals(etag))) {
+            Matcher m = RANGE.matcher(range.trim());
+            // a last byte before the first is not a valid range, it is ignored like any other (RFC 7233 2.1)
+            if (m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty())
+                    && (m.group(1).isEmpty() || m.group(2).isEmpty() || parse(m.group(2)) >= parse(m.group(1)))) {
+                if (m.group(1).isEmpty()) {
+                    // the last n bytes
+                    start = Math.max(0, length - parse(m.group(2)));
+                } else {
+                    start = parse(m.group(1));
+                    end = m.group(2).isEmpty() ? length : Math.min(length - 1, parse(m.group(2))) + 1;
+                }
+                if (start >= end) {
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + length);
+            }
+        }
+        response.setContentLengthLong(end - start);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+
+        if (length <= IMAGE_CACHE_MAX_FILE_SIZE) {
+            byte[] content = cached(file, length, modified);
+            // shorter only if the file was just rewritten
+            response.getOutputStream().write(content, (int) start, (int) Math.max(0, Math.min(end, content.length) - start));
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // Tomcat sends the file once the request returns
+            request.setAttribute(SENDFILE_FILENAME, file.toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file)) {
+            OutputStream out = response.getOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            for (long position = start; position < end; ) {
+                position += channel.transferTo(position, end - position, target);
+            }
+        }
+    }
+
+    private byte[] cached(Path file, long length, long modified) throws IOException {
+        synchronized (cache) {
+            CachedFile cached = cache.get(file);
+            if (cached != null && cached.content.length == length && cached.modified == modified) {
+                return cached.content;
+            }
+        }
+        byte[] content = Files.readAllBytes(file);
+        if (content.length != length) {
+            // changed since it was looked at
+            return content;
+        }
+        synchronized (cache) {
+            CachedFile old = cache.put(file, new CachedFile(content, modified));
+            cachedBytes += content.length - (old == null ? 0 : old.content.length);
+            for (Iterator<CachedFile> it = cache.values().iterator(); cachedBytes > IMAGE_CACHE_MAX_BYTES && it.hasNext(); ) {
+                cachedBytes -= it.next().content.length;
+                it.remove();
+            }
+        }
+        return content;
+    }
+
+    // If-None-Match, with the weak comparison it calls for
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (StrUtil.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        String opaque = StrUtil.removePrefix(etag, "W/");
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag) || opaque.equals(StrUtil.removePrefix(tag, "W/"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parse(String digits) {
+        // longer than any file
+        return digits.length() > 18 ? Long.MAX_VALUE : Long.parseLong(digits);
+    }
+
+    private static class CachedFile {
+        private final byte[] content;
+        private final long modified;
+
+        CachedFile(byte[] content, long modified) {
+            this.content = content;
+            this.modified = modified;
+        }
+    }
+}
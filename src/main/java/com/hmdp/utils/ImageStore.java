@@ -0,0 +1,302 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.hmdp.utils.RedisConstants.IMAGE_REFS_KEY;
+import static com.hmdp.utils.SystemConstants.IMAGE_VARIANT_WIDTHS;
+
+/**
+ * Uploaded images on disk, named by the SHA-256 of their content.
+ * <p>
+ * An upload is copied from the request stream to a temporary file through a channel and hashed on the way, without
+ * holding the image in memory, and aborted as soon as it passes the size limit. The file is then moved to
+ * /blogs/{d1}/{d2}/{hash}.{suffix}. Uploading an image that is already stored only adds a reference to it, kept in
+ * a Redis hash, and deleting it drops a reference, the file and its scaled variants go with the last one.
+ * <p>
+ * The files are on the disk of this node, uploads and deletes of the same image are serialized by local locks.
+ */
+@Slf4j
+@Component
+public class ImageStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // served back as images, anything else could be a page running script in the site's origin
+    private static final Set<String> SUFFIXES = new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "gif", "webp"));
+    private static final String TMP_DIR = "tmp";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.image.upload-dir:./imgs}")
+    private String uploadDir;
+
+    @Value("${hmdp.image.max-size:10485760}")
+    private long maxSize;
+
+    private Path root;
+    private Path tmp;
+    private final ReentrantLock[] locks = new ReentrantLock[64];
+
+    public ImageStore(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        root = Paths.get(uploadDir).toAbsolutePath().normalize();
+        tmp = Files.createDirectories(root.resolve(TMP_DIR));
+        log.info("image upload dir {}", root);
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * An empty file on the same disk as the images, to be moved in place once written
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(tmp, "upload-", ".part");
+    }
+
+    /**
+     * Store an image, or add a reference to the same image stored before
+     * @param in               content of the image, read to the end
+     * @param originalFilename name given by the client, only its suffix is kept
+     * @return name of the image, relative to the upload dir
+     * @throws IllegalArgumentException if the suffix is not jpg, jpeg, png, gif or webp, or the image is larger than the limit
+     */
+    public String save(InputStream in, String originalFilename) throws IOException {
+        String suffix = StrUtil.subAfter(originalFilename, ".", true).toLowerCase();
+        if (!SUFFIXES.contains(suffix)) {
+            throw new IllegalArgumentException("不支持的文件类型");
+        }
+        MessageDigest digest = sha256();
+        Path part = createTempFile();
+        try {
+            try (ReadableByteChannel source = Channels.newChannel(in);
+                 FileChannel target = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                long size = 0;
+                int n;
+                while ((n = source.read(buffer)) >= 0) {
+                    size += n;
+                    if (size > maxSize) {
+                        throw new IllegalArgumentException(StrUtil.format("图片不能超过{}KB", maxSize / 1024));
+                    }
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+            byte[] hash = digest.digest();
+            String name = StrUtil.format("/blogs/{}/{}/{}.{}",
+                    hash[0] & 0xF, (hash[0] >> 4) & 0xF, HexUtil.encodeHexStr(hash), suffix);
+            ReentrantLock lock = lockOf(name);
+            lock.lock();
+            try {
+                Path file = resolve(name);
+                if (Files.notExists(file)) {
+                    try {
+                        moveInPlace(part, file);
+                    } catch (FileAlreadyExistsException e) {
+                        // stored meanwhile by another node sharing the disk
+                    }
+                } else {
+                    // an image stored again is not an orphan, see ImageGarbageCollector
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                }
+                Long refs = stringRedisTemplate.opsForHash().increment(IMAGE_REFS_KEY, name, 1);
+                log.debug("stored image {}, {} references", name, refs);
+            } finally {
+                lock.unlock();
+            }
+            return name;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Move a written temporary file to its place atomically, readable by everyone like the files nginx serves
+     */
+    public void moveInPlace(Path part, Path file, CopyOption... options) throws IOException {
+        if (part.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            // temporary files are created readable by the owner only
+            Files.setPosixFilePermissions(part, PosixFilePermissions.fromString("rw-r--r--"));
+        }
+        Files.createDirectories(file.getParent());
+        CopyOption[] move = Arrays.copyOf(options, options.length + 1);
+        move[options.length] = StandardCopyOption.ATOMIC_MOVE;
+        Files.move(part, file, move);
+    }
+
+    /**
+     * Drop a reference to an image, deleting the file with the last one. Images stored before references were
+     * counted have none, and are deleted at once.
+     * @return false if the name is not an image in the upload dir
+     */
+    public boolean release(String name) throws IOException {
+        Path file = resolve(name);
+        if (file == null || Files.isDirectory(file)) {
+            return false;
+        }
+        ReentrantLock lock = lockOf(name);
+        lock.lock();
+        try {
+            Long refs = stringRedisTemplate.opsForHash().increment(IMAGE_REFS_KEY, name, -1);
+            if (refs != null && refs > 0) {
+                return true;
+            }
+            stringRedisTemplate.opsForHash().delete(IMAGE_REFS_KEY, name);
+            Files.deleteIfExists(file);
+            for (int width : IMAGE_VARIANT_WIDTHS) {
+                Files.deleteIfExists(resolve(variantName(name, width)));
+            }
+            log.debug("deleted image {}", name);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mark an image and its variants as just used, before a blog refers to them. The garbage collector keeps what
+     * was touched after its cutoff, and what it deleted first is reported gone.
+     * @param image name of the image, or a URL of it
+     * @return false if the image is gone, true if it is there or isn't an uploaded image at all
+     */
+    public boolean touch(String image) throws IOException {
+        int from = image.indexOf("/blogs/");
+        if (from < 0) {
+            return true;
+        }
+        String name = image.substring(from);
+        Path file = resolve(name);
+        if (file == null) {
+            return true;
+        }
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        if (!touch(name, file, now)) {
+            return false;
+        }
+        for (int width : IMAGE_VARIANT_WIDTHS) {
+            String variant = variantName(name, width);
+            touch(variant, resolve(variant), now);
+        }
+        return true;
+    }
+
+    // under the lock deleteIfOlderThan takes, so the file is either kept or already gone
+    private boolean touch(String name, Path file, FileTime time) throws IOException {
+        ReentrantLock lock = lockOf(name);
+        lock.lock();
+        try {
+            Files.setLastModifiedTime(file, time);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete an image unless it was stored again or touched since the cutoff, for the garbage collector
+     * @return bytes freed, -1 if the image was kept or is gone
+     */
+    public long deleteIfOlderThan(String name, long cutoffMillis) throws IOException {
+        Path file = resolve(name);
+        if (file == null) {
+            return -1;
+        }
+        ReentrantLock lock = lockOf(name);
+        lock.lock();
+        try {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return -1;
+            }
+            if (!attributes.isRegularFile() || attributes.lastModifiedTime().toMillis() >= cutoffMillis) {
+                return -1;
+            }
+            Files.delete(file);
+            stringRedisTemplate.opsForHash().delete(IMAGE_REFS_KEY, name);
+            log.debug("deleted orphan image {}", name);
+            return attributes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Name of the variant of an image scaled to a width, /blogs/{d1}/{d2}/{hash}_w{width}.jpg
+     */
+    public static String variantName(String name, int width) {
+        return StrUtil.subBefore(name, ".", true) + "_w" + width + ".jpg";
+    }
+
+    /**
+     * The file of an image, null if the name points outside the upload dir
+     */
+    public Path resolve(String name) {
+        if (StrUtil.isBlank(name)) {
+            return null;
+        }
+        Path file = root.resolve(StrUtil.removePrefix(name, "/")).normalize();
+        return file.startsWith(root) && !file.equals(root) && !file.startsWith(tmp) ? file : null;
+    }
+
+    private ReentrantLock lockOf(String name) {
+        return locks[(name.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
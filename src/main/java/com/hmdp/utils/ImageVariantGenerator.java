@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.dto.ImageDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.IMAGE_VARIANT_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.IMAGE_VARIANT_STATUS_TTL;
+import static com.hmdp.utils.SystemConstants.*;
+
+/**
+ * Scaled down JPEG variants of uploaded images, one per width of {@link SystemConstants#IMAGE_VARIANT_WIDTHS},
+ * generated in the background after the upload.
+ * <p>
+ * The variant names follow from the name of the image, so they are known as soon as the job is queued, and the
+ * status in Redis says whether the files exist yet. Jobs run on a bounded pool of low priority threads, one per
+ * core, and a job that doesn't fit in the queue fails at once instead of holding up the upload.
+ * <p>
+ * A decoded image takes 4 bytes a pixel whatever its file size, so the threads don't bound the memory. Before
+ * decoding, a job reserves the estimated size of its pixels from a budget, in KB, and waits while the other jobs
+ * hold too much of it. An image larger than the whole budget waits for all of it and runs alone.
+ */
+@Slf4j
+@Component
+public class ImageVariantGenerator {
+
+    public static final String PENDING = "pending";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private final ImageStore imageStore;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final ThreadPoolExecutor executor;
+
+    @Value("${hmdp.image.variant.memory-budget:268435456}")
+    private long memoryBudget;
+
+    private int budgetKb;
+    private Semaphore budget;
+
+    public ImageVariantGenerator(ImageStore imageStore, StringRedisTemplate stringRedisTemplate) {
+        this.imageStore = imageStore;
+        this.stringRedisTemplate = stringRedisTemplate;
+        int cores = Runtime.getRuntime().availableProcessors();
+        ThreadFactory named = new NamedThreadFactory("image-variant-", true);
+        // behind request threads whenever the cores are busy
+        ThreadFactory lowPriority = r -> {
+            Thread t = named.newThread(r);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(cores, cores, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256),
+                lowPriority, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PostConstruct
+    private void init() {
+        budgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / 1024));
+        budget = new Semaphore(budgetKb, true);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queue the generation of the variants of a stored image
+     * @return the image with the status it was given, done if the variants exist already, failed if the queue is
+     * full, pending otherwise, and the names of the variants by width
+     */
+    public ImageDTO submit(String name) {
+        Map<Integer, String> variants = variantsOf(name);
+        String key = IMAGE_VARIANT_STATUS_KEY + name;
+        if (variants.values().stream().allMatch(v -> Files.exists(imageStore.resolve(v)))) {
+            // the same image uploaded before
+            stringRedisTemplate.opsForValue().set(key, DONE, IMAGE_VARIANT_STATUS_TTL, TimeUnit.MINUTES);
+            return new ImageDTO(name, DONE, variants);
+        }
+        stringRedisTemplate.opsForValue().set(key, PENDING, IMAGE_VARIANT_STATUS_TTL, TimeUnit.MINUTES);
+        try {
+            executor.execute(() -> {
+                String status;
+                try {
+                    generate(name);
+                    status = DONE;
+                } catch (Exception e) {
+                    log.warn("生成图片{}的缩略图失败: {}", name, e.toString());
+                    status = FAILED;
+                }
+                stringRedisTemplate.opsForValue().set(key, status, IMAGE_VARIANT_STATUS_TTL, TimeUnit.MINUTES);
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("缩略图任务队列已满，跳过图片{}", name);
+            stringRedisTemplate.opsForValue().set(key, FAILED, IMAGE_VARIANT_STATUS_TTL, TimeUnit.MINUTES);
+            return new ImageDTO(name, FAILED, variants);
+        }
+        return new ImageDTO(name, PENDING, variants);
+    }
+
+    /**
+     * @return pending, done or failed, null if nothing is known about the image
+     */
+    public String status(String name) {
+        return stringRedisTemplate.opsForValue().get(IMAGE_VARIANT_STATUS_KEY + name);
+    }
+
+    public static Map<Integer, String> variantsOf(String name) {
+        Map<Integer, String> variants = new LinkedHashMap<>();
+        for (int width : IMAGE_VARIANT_WIDTHS) {
+            variants.put(width, ImageStore.variantName(name, width));
+        }
+        return variants;
+    }
+
+    private void generate(String name) throws IOException, InterruptedException {
+        long begin = System.nanoTime();
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageStore.resolve(name).toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("not an image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                // decodes only images of a sane size, the header is checked before the pixels are read
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > IMAGE_VARIANT_MAX_PIXELS) {
+                    throw new IOException("image too large, " + reader.getWidth(0) + "x" + reader.getHeight(0));
+                }
+                int kb = costKb(pixels);
+                budget.acquire(kb);
+                try {
+                    BufferedImage image = reader.read(0);
+                    writeVariants(name, image);
+                } finally {
+                    budget.release(kb);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        log.debug("generated variants of {} in {} ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+
+    // the decoded image at 4 bytes a pixel, and the halved copies scaled from it, a third of that at most
+    private int costKb(long pixels) {
+        return (int) Math.min(budgetKb, Math.max(1, pixels * 4 * 4 / 3 / 1024));
+    }
+
+    private void writeVariants(String name, BufferedImage image) throws IOException {
+        // widest first, each variant is scaled from the one before, which is closer in size
+        int[] widths = IMAGE_VARIANT_WIDTHS.clone();
+        Arrays.sort(widths);
+        BufferedImage source = image;
+        for (int i = widths.length - 1; i >= 0; i--) {
+            BufferedImage scaled = scale(source, Math.min(widths[i], image.getWidth()));
+            write(scaled, imageStore.resolve(ImageStore.variantName(name, widths[i])));
+            source = scaled;
+        }
+    }
+
+    // halves the image until it is less than twice the target width, then scales to the width, bilinear each step
+    private static BufferedImage scale(BufferedImage image, int width) {
+        BufferedImage current = image;
+        int w = image.getWidth();
+        do {
+            int nextW = Math.max(width, w / 2);
+            int nextH = Math.max(1, (int) Math.round((double) image.getHeight() * nextW / image.getWidth()));
+            // JPEG has no alpha, transparent pixels become white
+            BufferedImage next = new BufferedImage(nextW, nextH, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(current, 0, 0, nextW, nextH, Color.WHITE, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+            w = nextW;
+        } while (w > width);
+        return current;
+    }
+
+    private void write(BufferedImage image, Path file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(IMAGE_VARIANT_QUALITY);
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        Path part = imageStore.createTempFile();
+        try {
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(part.toFile())) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            imageStore.moveInPlace(part, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+}
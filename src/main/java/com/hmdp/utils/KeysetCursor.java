@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Opaque cursor for keyset (seek) pagination.
+ * <p>
+ * The cursor carries the sort key and id of the last row of the previous page, so the next page
+ * is located with an index range scan instead of OFFSET, and no COUNT(*) query is needed.
+ */
+@Data
+@AllArgsConstructor
+public class KeysetCursor {
+
+    private static final String ID_COLUMN = "id";
+
+    /**
+     * sort key of the last row, equals to id when the page is sorted by id only
+     */
+    private Long sortKey;
+    /**
+     * id of the last row, the tie breaker of equal sort keys
+     */
+    private Long id;
+
+    public String encode() {
+        return Base64.encodeUrlSafe(sortKey + ":" + id, StandardCharsets.UTF_8);
+    }
+
+    public static String encode(Long sortKey, Long id) {
+        return new KeysetCursor(sortKey, id).encode();
+    }
+
+    /**
+     * Decode a cursor created by {@link #encode()}
+     * @param cursor the opaque cursor
+     * @return the cursor, or null if it is blank or malformed
+     */
+    public static KeysetCursor decode(String cursor) {
+        if (StrUtil.isBlank(cursor)) {
+            return null;
+        }
+        try {
+            String raw = Base64.decodeStr(cursor, StandardCharsets.UTF_8);
+            int i = raw.indexOf(':');
+            if (i < 0) {
+                return null;
+            }
+            return new KeysetCursor(Long.valueOf(raw.substring(0, i)), Long.valueOf(raw.substring(i + 1)));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Restrict the query to the rows after the cursor and limit it to one page.
+     * <p>
+     * Sorting by (sortColumn, id) lets an index on (..., sortColumn, id) serve both the range and the order.
+     * @param query      the query to restrict
+     * @param sortColumn the sort column, "id" for pages sorted by id only
+     * @param asc        true for ascending order, false for descending
+     * @param cursor     the cursor of the previous page, null for the first page
+     * @param size       the page size
+     */
+    public static <T> QueryChainWrapper<T> seek(QueryChainWrapper<T> query, String sortColumn, boolean asc,
+                                                KeysetCursor cursor, int size) {
+        boolean byId = ID_COLUMN.equals(sortColumn);
+        if (cursor != null) {
+            if (byId) {
+                // id > ? / id < ?
+                if (asc) {
+                    query.gt(ID_COLUMN, cursor.getId());
+                } else {
+                    query.lt(ID_COLUMN, cursor.getId());
+                }
+            } else if (asc) {
+                // sort > ? OR (sort = ? AND id > ?)
+                query.and(w -> w.gt(sortColumn, cursor.getSortKey())
+                        .or(o -> o.eq(sortColumn, cursor.getSortKey()).gt(ID_COLUMN, cursor.getId())));
+            } else {
+                // sort < ? OR (sort = ? AND id < ?)
+                query.and(w -> w.lt(sortColumn, cursor.getSortKey())
+                        .or(o -> o.eq(sortColumn, cursor.getSortKey()).lt(ID_COLUMN, cursor.getId())));
+            }
+        }
+        if (!byId) {
+            query.orderBy(true, asc, sortColumn);
+        }
+        query.orderBy(true, asc, ID_COLUMN);
+        return query.last("LIMIT " + size);
+    }
+
+    /**
+     * Create the cursor of the page following the given records
+     * @param records   the records of the current page
+     * @param size      the page size
+     * @param sortKeyOf extract the sort key of a record
+     * @param idOf      extract the id of a record
+     * @return the next cursor, or null if there is no more data
+     */
+    public static <T> String next(List<T> records, int size,
+                                  Function<T, ? extends Number> sortKeyOf,
+                                  Function<T, Long> idOf) {
+        if (records == null || records.size() < size) {
+            return null;
+        }
+        T last = records.get(records.size() - 1);
+        Number sortKey = sortKeyOf.apply(last);
+        return encode(sortKey == null ? 0L : sortKey.longValue(), idOf.apply(last));
+    }
+}
@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * Delayed cancellation of unpaid orders.
+ * <p>
+ * Every order is kept in the sorted set {@link RedisConstants#ORDER_TIMEOUT_KEY} scored by its deadline,
+ * written by the seckill right before the order is queued. The node that took the order also puts it in an
+ * in-memory {@link TimingWheel}, so it fires on time at O(1) cost. Whoever removes an order from the sorted
+ * set first owns it, and orders whose node went away are picked up by a periodic sweep of the sorted set.
+ */
+@Slf4j
+@Component
+public class OrderTimeoutScheduler {
+
+    private static final long TICK_MILLIS = 1000;
+    // orders overdue longer than this are swept up from the sorted set by any node
+    private static final long SWEEP_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long SWEEP_PERIOD_SECONDS = 30;
+    private static final int BATCH_SIZE = 500;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final TimingWheel<Long> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+
+    private final ScheduledExecutorService executor =
+            Executors.newScheduledThreadPool(2, new NamedThreadFactory("order-timeout-", true));
+
+    private volatile Consumer<List<Long>> handler;
+
+    public OrderTimeoutScheduler(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * Start firing timeouts
+     * @param handler cancels a batch of timed out orders owned by this node
+     */
+    public void start(Consumer<List<Long>> handler) {
+        this.handler = handler;
+        executor.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::sweep, SWEEP_PERIOD_SECONDS, SWEEP_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Time out an order on this node, the order must already be in the sorted set
+     */
+    public void schedule(Long orderId, long expireAt) {
+        synchronized (wheel) {
+            wheel.add(orderId, expireAt);
+        }
+    }
+
+    /**
+     * Put an order back, for one that could not be cancelled yet
+     */
+    public void reschedule(Long orderId, long expireAt) {
+        stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, orderId.toString(), expireAt);
+        schedule(orderId, expireAt);
+    }
+
+    private void tick() {
+        List<Long> expired = new ArrayList<>();
+        synchronized (wheel) {
+            // catch up if a tick was delayed
+            while (wheel.nextTickMillis() <= System.currentTimeMillis()) {
+                expired.addAll(wheel.advance());
+            }
+        }
+        for (int from = 0; from < expired.size(); from += BATCH_SIZE) {
+            claimAndHandle(expired.subList(from, Math.min(from + BATCH_SIZE, expired.size())));
+        }
+    }
+
+    private void sweep() {
+        try {
+            Set<String> overdue;
+            do {
+                overdue = stringRedisTemplate.opsForZSet().rangeByScore(ORDER_TIMEOUT_KEY,
+                        0, System.currentTimeMillis() - SWEEP_GRACE_MILLIS, 0, BATCH_SIZE);
+                if (overdue == null || overdue.isEmpty()) {
+                    return;
+                }
+                claimAndHandle(overdue.stream().map(Long::valueOf).collect(Collectors.toList()));
+            } while (overdue.size() == BATCH_SIZE);
+        } catch (Exception e) {
+            log.error("扫描超时订单异常", e);
+        }
+    }
+
+    // remove the orders from the sorted set, the ones really removed here are owned by this node
+    private void claimAndHandle(List<Long> orderIds) {
+        List<Long> claimed;
+        try {
+            Object[] args = orderIds.stream().map(String::valueOf).toArray();
+            List<?> result = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(ORDER_TIMEOUT_KEY), args);
+            if (result == null || result.isEmpty()) {
+                return;
+            }
+            claimed = result.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList());
+        } catch (Exception e) {
+            // still in the sorted set, the sweep retries them
+            log.error("认领超时订单异常", e);
+            return;
+        }
+        try {
+            handler.accept(claimed);
+        } catch (Exception e) {
+            log.error("取消超时订单异常", e);
+            // give them back to the sweep
+            long retryAt = System.currentTimeMillis();
+            claimed.forEach(id -> stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, id.toString(), retryAt));
+        }
+    }
+}
@@ -14,13 +14,45 @@ public class RedisConstants {
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop:type:";
     public static final Long CACHE_SHOP_TYPE_TTL = 24*60L;
 
+    public static final String CACHE_SHOP_IDS_KEY = "cache:shop:ids:";
+    public static final String CACHE_SHOP_IDS_VERSION_KEY = "cache:shop:ids:version:";
+    public static final Long CACHE_SHOP_IDS_TTL = 24*60L;
+
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 10L;
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_BLOG_LIKES_KEY = "cache:blog:likes:";
+    public static final Long CACHE_BLOG_LIKES_TTL = 30L;
+
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:voucher:shop:";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 30L;
+
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
-    public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_SHOP_IDS_KEY = "lock:shop:ids:";
+    public static final String LOCK_ORDER_KEY = "lock:order:";
+    public static final Long LOCK_WATCHDOG_TTL = 30L;
 
-    public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_BUCKET_KEY = "seckill:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final Long SECKILL_SOLD_OUT_LOCAL_TTL = 3L;
+    public static final String SECKILL_LIMIT_KEY = "limit:seckill:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:changed";
+    public static final String SHOP_NAME_CHANNEL = "shop:name:changed";
+    public static final String SHOP_CHANGE_STREAM = "stream.shops";
+    public static final long SHOP_CHANGE_STREAM_MAXLEN = 100000;
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String IMAGE_REFS_KEY = "image:refs";
+    public static final String IMAGE_VARIANT_STATUS_KEY = "image:variants:";
+    public static final Long IMAGE_VARIANT_STATUS_TTL = 24 * 60L;
 }
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Globally unique id generator: 1 sign bit, 31 bits of seconds since {@link #BEGIN_TIMESTAMP}
+ * and 32 bits of a sequence counted per key prefix and per day in Redis.
+ */
+@Component
+public class RedisIdWorker {
+
+    /**
+     * 2022-01-01 00:00:00 UTC
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * Create an id with one INCR on the daily counter
+     * @param keyPrefix business prefix of the counter, e.g. "order"
+     * @return the id
+     */
+    public long nextId(String keyPrefix) {
+        LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        Long count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now));
+        return timestamp << COUNT_BITS | count;
+    }
+
+    /**
+     * Create an id from a range of the daily counter leased by this node with one INCRBY,
+     * so only one of every {@link SystemConstants#ID_SEGMENT_SIZE} ids costs a Redis round trip
+     * @param keyPrefix business prefix of the counter, e.g. "order"
+     * @return the id
+     */
+    public long nextSegmentId(String keyPrefix) {
+        while (true) {
+            LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+            long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+            String key = counterKey(keyPrefix, now);
+
+            Segment segment = segments.get(keyPrefix);
+            if (segment != null && segment.key.equals(key)) {
+                // lock free in the common case
+                long count = segment.next.getAndIncrement();
+                if (count <= segment.max) {
+                    return timestamp << COUNT_BITS | count;
+                }
+            }
+            // the segment is used up or belongs to another day, the first thread here leases the next one
+            synchronized (segments) {
+                if (segments.get(keyPrefix) == segment) {
+                    segments.put(keyPrefix, lease(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id an id created by this worker
+     * @return the time the id was created, in epoch millis with second precision
+     */
+    public static long createdAtMillis(long id) {
+        return ((id >>> COUNT_BITS) + BEGIN_TIMESTAMP) * 1000;
+    }
+
+    private Segment lease(String key) {
+        Long max = stringRedisTemplate.opsForValue().increment(key, SystemConstants.ID_SEGMENT_SIZE);
+        return new Segment(key, max - SystemConstants.ID_SEGMENT_SIZE + 1, max);
+    }
+
+    private static String counterKey(String keyPrefix, LocalDateTime now) {
+        return "icr:" + keyPrefix + ":" + now.format(DAY_FORMATTER);
+    }
+
+    private static class Segment {
+        private final String key;
+        private final AtomicLong next;
+        private final long max;
+
+        Segment(String key, long min, long max) {
+            this.key = key;
+            this.next = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+}
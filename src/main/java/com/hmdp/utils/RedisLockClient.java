@@ -0,0 +1,216 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.hmdp.utils.RedisConstants.LOCK_WATCHDOG_TTL;
+
+/**
+ * Distributed locks on Redis.
+ * <p>
+ * A lock is a hash from owner token ({node id}:{thread id}) to hold count, so it is reentrant and only its
+ * owner can release it, both checked in Lua. A lock taken without a lease expires after
+ * {@link RedisConstants#LOCK_WATCHDOG_TTL} seconds unless a watchdog on the owner's node keeps renewing it,
+ * so a crashed node never holds a lock for long and a slow holder never loses it.
+ * <p>
+ * Before going to Redis a thread takes a local lock of the same key, so threads of the same node wait for each
+ * other in the JVM and only one of them at a time polls Redis. Local locks are counted by the threads holding or
+ * waiting for them and dropped with the last one, so locks of different keys never block each other.
+ */
+@Slf4j
+@Component
+public class RedisLockClient {
+
+    private static final long MAX_RETRY_MILLIS = 100;
+
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    // lock key -> local lock, while some thread of this node holds or waits for it
+    private final Map<String, LocalLock> localLocks = new ConcurrentHashMap<>();
+
+    // lock key + owner token -> renewal task of the watchdog
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lock-watchdog-", true));
+
+    public RedisLockClient(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * @param key the Redis key of the lock, e.g. lock:shop:1
+     */
+    public ILock getLock(String key) {
+        return new RedisLock(key);
+    }
+
+    // the local lock of a key, counted until released
+    private ReentrantLock retain(String key) {
+        return localLocks.compute(key, (k, local) -> {
+            if (local == null) {
+                local = new LocalLock();
+            }
+            local.refs++;
+            return local;
+        }).lock;
+    }
+
+    private void release(String key) {
+        localLocks.computeIfPresent(key, (k, local) -> --local.refs == 0 ? null : local);
+    }
+
+    private void watch(String key, String owner) {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(LOCK_WATCHDOG_TTL);
+        renewals.computeIfAbsent(key + "#" + owner, k -> watchdog.scheduleAtFixedRate(() -> {
+            try {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                        owner, String.valueOf(ttlMillis));
+                if (renewed == null || renewed == 0) {
+                    unwatch(key, owner);
+                }
+            } catch (Exception e) {
+                // the lease outlives a few failed renewals, try again next round
+                log.warn("锁续期失败 {}", key, e);
+            }
+        }, ttlMillis / 3, ttlMillis / 3, TimeUnit.MILLISECONDS));
+    }
+
+    private void unwatch(String key, String owner) {
+        ScheduledFuture<?> renewal = renewals.remove(key + "#" + owner);
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+    }
+
+    private class RedisLock implements ILock {
+
+        private final String key;
+        private long leaseMillis = TimeUnit.SECONDS.toMillis(LOCK_WATCHDOG_TTL);
+        private boolean watched = true;
+
+        RedisLock(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean tryLock(long waitTime, TimeUnit unit) throws InterruptedException {
+            return tryLock(waitTime, -1, unit);
+        }
+
+        @Override
+        public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(waitTime);
+            ReentrantLock local = retain(key);
+            boolean taken = false;
+            try {
+                taken = local.tryLock(waitTime, unit);
+            } finally {
+                if (!taken) {
+                    release(key);
+                }
+            }
+            if (!taken) {
+                return false;
+            }
+            watched = leaseTime < 0;
+            leaseMillis = watched ? TimeUnit.SECONDS.toMillis(LOCK_WATCHDOG_TTL) : unit.toMillis(leaseTime);
+            String owner = owner();
+            boolean locked = false;
+            try {
+                while (true) {
+                    Long ttl = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(key),
+                            owner, String.valueOf(leaseMillis));
+                    if (ttl == null) {
+                        locked = true;
+                        if (watched) {
+                            watch(key, owner);
+                        }
+                        return true;
+                    }
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    // held by another node, poll again before its lease runs out
+                    Thread.sleep(Math.max(1, Math.min(Math.min(ttl, remaining), MAX_RETRY_MILLIS)));
+                }
+            } finally {
+                if (!locked) {
+                    local.unlock();
+                    release(key);
+                }
+            }
+        }
+
+        @Override
+        public void unlock() {
+            String owner = owner();
+            LocalLock local = localLocks.get(key);
+            try {
+                Long released = stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key),
+                        owner, String.valueOf(leaseMillis));
+                if (released == null) {
+                    unwatch(key, owner);
+                    throw new IllegalMonitorStateException("lock " + key + " is not held by " + owner);
+                }
+                if (released == 1) {
+                    unwatch(key, owner);
+                }
+            } finally {
+                if (local != null && local.lock.isHeldByCurrentThread()) {
+                    local.lock.unlock();
+                    release(key);
+                }
+            }
+        }
+
+        private String owner() {
+            return nodeId + ":" + Thread.currentThread().getId();
+        }
+    }
+
+    private static class LocalLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        // threads holding or waiting, a reentrant hold counts each time, guarded by the map
+        private int refs;
+    }
+}
@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * Admission control in front of the seckill script, in two tiers.
+ * <p>
+ * Every node keeps a {@link TokenBucket} per voucher, requests over the local rate are rejected without any I/O.
+ * Optionally the admitted requests also take a token from a bucket in Redis shared by all nodes. The Redis tier
+ * fails open, a limiter that cannot be reached does not block orders.
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    // vouchers beyond this share one limit, so unknown ids cannot grow the map without bound
+    private static final int MAX_TRACKED_VOUCHERS = 4096;
+    private static final Long OTHER_VOUCHERS = -1L;
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.limit.local-permits-per-second:500}")
+    private double localPermitsPerSecond;
+
+    @Value("${hmdp.seckill.limit.local-burst:100}")
+    private int localBurst;
+
+    @Value("${hmdp.seckill.limit.redis-enabled:false}")
+    private boolean redisEnabled;
+
+    @Value("${hmdp.seckill.limit.redis-permits-per-second:2000}")
+    private double redisPermitsPerSecond;
+
+    @Value("${hmdp.seckill.limit.redis-burst:400}")
+    private int redisBurst;
+
+    private final Map<Long, Limit> limits = new ConcurrentHashMap<>();
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * @return true if the request may go on to the seckill script
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Limit limit = limitOf(voucherId);
+        if (!limit.bucket.tryAcquire()) {
+            limit.rejectedLocal.increment();
+            return false;
+        }
+        if (redisEnabled && !tryAcquireCluster(voucherId)) {
+            limit.rejectedCluster.increment();
+            return false;
+        }
+        limit.admitted.increment();
+        return true;
+    }
+
+    /**
+     * @return admitted and rejected request counts of each voucher since startup, -1 counts the untracked vouchers
+     */
+    public Map<Long, Map<String, Long>> stats() {
+        Map<Long, Map<String, Long>> stats = new LinkedHashMap<>(limits.size());
+        limits.forEach((voucherId, limit) -> {
+            Map<String, Long> counts = new LinkedHashMap<>(3);
+            counts.put("admitted", limit.admitted.sum());
+            counts.put("rejectedLocal", limit.rejectedLocal.sum());
+            counts.put("rejectedCluster", limit.rejectedCluster.sum());
+            stats.put(voucherId, counts);
+        });
+        return stats;
+    }
+
+    private Limit limitOf(Long voucherId) {
+        Limit limit = limits.get(voucherId);
+        if (limit != null) {
+            return limit;
+        }
+        Long key = limits.size() < MAX_TRACKED_VOUCHERS ? voucherId : OTHER_VOUCHERS;
+        return limits.computeIfAbsent(key, k -> new Limit(new TokenBucket(localPermitsPerSecond, localBurst)));
+    }
+
+    private boolean tryAcquireCluster(Long voucherId) {
+        try {
+            Long taken = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(redisPermitsPerSecond), String.valueOf(redisBurst));
+            return taken == null || taken == 1L;
+        } catch (Exception e) {
+            log.warn("秒杀限流失败，放行请求", e);
+            return true;
+        }
+    }
+
+    private static class Limit {
+        private final TokenBucket bucket;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejectedLocal = new LongAdder();
+        private final LongAdder rejectedCluster = new LongAdder();
+
+        Limit(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
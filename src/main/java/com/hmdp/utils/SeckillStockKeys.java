@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKET_KEY;
+
+/**
+ * Keys of the seckill stock of a voucher, split across buckets for ultra-hot vouchers.
+ * <p>
+ * Bucket i keeps its stock at seckill:{voucherId:i}:stock and the buyers whose home it is at
+ * seckill:{voucherId:i}:order. The hash tag puts both keys of a bucket in one slot, and the buckets of a voucher in
+ * different slots, so a Redis cluster spreads them over its shards.
+ */
+public class SeckillStockKeys {
+
+    public static String stockKey(Long voucherId, int bucket) {
+        return SECKILL_BUCKET_KEY + "{" + voucherId + ":" + bucket + "}:stock";
+    }
+
+    public static String orderKey(Long voucherId, int bucket) {
+        return SECKILL_BUCKET_KEY + "{" + voucherId + ":" + bucket + "}:order";
+    }
+
+    /**
+     * Stock keys of all buckets
+     */
+    public static List<String> of(Long voucherId, int buckets) {
+        int n = Math.max(buckets, 1);
+        List<String> keys = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * The bucket a user buys from first, and keeps the order in
+     */
+    public static int homeBucket(Long userId, int buckets) {
+        return Math.floorMod(userId.hashCode(), Math.max(buckets, 1));
+    }
+
+    /**
+     * Split the stock evenly, the first buckets take the remainder
+     * @param stock   total stock
+     * @param buckets number of buckets
+     * @return stock of each bucket, summing up to the total
+     */
+    public static int[] split(int stock, int buckets) {
+        int n = Math.max(buckets, 1);
+        int[] parts = new int[n];
+        for (int i = 0; i < n; i++) {
+            parts[i] = stock / n + (i < stock % n ? 1 : 0);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,455 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGE_STREAM;
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGE_STREAM_MAXLEN;
+
+/**
+ * Read-optimized copy of the filterable shop attributes, answering filter, sort and limit queries in the JVM.
+ * <p>
+ * Every shop is a row of primitive columns, the area is dictionary encoded. Each type and each area has a bitmap
+ * of its rows. The rows are also kept sorted by each sort column, re-sorted in the background once enough rows
+ * changed. A query walks the sorted rows and stops at the first page worth of matches, then merges in the rows
+ * changed since the sort. A query whose type or area bitmap is small scans that bitmap instead.
+ * <p>
+ * Shop writes are appended after commit to the {@link RedisConstants#SHOP_CHANGE_STREAM} stream, which every node
+ * follows from the point it started loading, so no change is missed between the load and the first read.
+ */
+@Slf4j
+@Component
+public class ShopCatalog {
+
+    public static final String SORT_BY_SCORE = "score";
+    public static final String SORT_BY_SOLD = "sold";
+    public static final String SORT_BY_COMMENTS = "comments";
+
+    private static final long NO_PRICE = -1;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int rows;
+    private long[] ids = new long[1024];
+    private long[] typeIds = new long[1024];
+    private int[] areas = new int[1024];
+    private long[] avgPrices = new long[1024];
+    private int[] scores = new int[1024];
+    private int[] solds = new int[1024];
+    private int[] comments = new int[1024];
+    private final Map<Long, Integer> rowOfShop = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private final Map<Long, BitSet> rowsOfType = new HashMap<>();
+    private final Map<Integer, BitSet> rowsOfArea = new HashMap<>();
+    // area dictionary, code 0 is no area
+    private final Map<String, Integer> areaCodes = new HashMap<>();
+    // rows by score, sold and comments, best first, as of the last sort; rows changed since then are unsorted
+    private int[][] orders = new int[3][];
+    private BitSet unsorted = new BitSet();
+    private int unsortedCount;
+    // rows changed while a sort is running, the unsorted rows of the new orders
+    private BitSet resorting;
+    private final AtomicBoolean sorting = new AtomicBoolean();
+
+    private final AtomicBoolean following = new AtomicBoolean();
+    private volatile boolean loaded;
+    private volatile boolean running = true;
+    private final ExecutorService follower =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("shop-catalog-", true));
+    private final ExecutorService sorter =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("shop-catalog-sort-", true));
+
+    public ShopCatalog(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        areaCodes.put("", 0);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        follower.shutdownNow();
+        sorter.shutdownNow();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return id of the last change in the stream, take it before loading the shops and follow the stream from it
+     */
+    public String lastChangeId() {
+        List<MapRecord<String, Object, Object>> last = stringRedisTemplate.opsForStream()
+                .reverseRange(SHOP_CHANGE_STREAM, Range.unbounded(), RedisZSetCommands.Limit.limit().count(1));
+        return last == null || last.isEmpty() ? "0-0" : last.get(0).getId().getValue();
+    }
+
+    /**
+     * Sort the loaded rows, mark the catalog loaded and apply the changes after the given one as they come,
+     * following only once per node
+     */
+    public void follow(String fromId) {
+        sort();
+        loaded = true;
+        if (!following.compareAndSet(false, true)) {
+            return;
+        }
+        follower.submit(() -> {
+            String offset = fromId;
+            while (running) {
+                try {
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            StreamReadOptions.empty().count(100).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(SHOP_CHANGE_STREAM, ReadOffset.from(offset)));
+                    if (records == null) {
+                        continue;
+                    }
+                    for (MapRecord<String, Object, Object> record : records) {
+                        put(toShop(record.getValue()));
+                        offset = record.getId().getValue();
+                    }
+                } catch (Exception e) {
+                    if (!running) {
+                        return;
+                    }
+                    log.error("读取商铺变更流失败", e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Append a committed change of a shop to the stream, applied here at once
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getShop();
+        put(shop);
+        Map<String, String> fields = new HashMap<>(8);
+        fields.put("id", StrUtil.toStringOrNull(shop.getId()));
+        fields.put("typeId", StrUtil.toStringOrNull(shop.getTypeId()));
+        fields.put("area", StrUtil.nullToEmpty(shop.getArea()));
+        // "" for null
+        fields.put("avgPrice", StrUtil.nullToEmpty(StrUtil.toStringOrNull(shop.getAvgPrice())));
+        fields.put("score", StrUtil.nullToEmpty(StrUtil.toStringOrNull(shop.getScore())));
+        fields.put("sold", StrUtil.nullToEmpty(StrUtil.toStringOrNull(shop.getSold())));
+        fields.put("comments", StrUtil.nullToEmpty(StrUtil.toStringOrNull(shop.getComments())));
+        try {
+            stringRedisTemplate.opsForStream().add(SHOP_CHANGE_STREAM, fields);
+            stringRedisTemplate.opsForStream().trim(SHOP_CHANGE_STREAM, SHOP_CHANGE_STREAM_MAXLEN);
+        } catch (Exception e) {
+            log.error("写入商铺变更流失败 {}", fields, e);
+        }
+    }
+
+    /**
+     * Add a shop or update its attributes
+     */
+    public void put(Shop shop) {
+        if (shop.getId() == null || shop.getTypeId() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer row = rowOfShop.get(shop.getId());
+            if (row == null) {
+                row = newRow(shop.getId());
+            } else {
+                rowsOfType.get(typeIds[row]).clear(row);
+                rowsOfArea.get(areas[row]).clear(row);
+            }
+            int area = areaCodes.computeIfAbsent(StrUtil.nullToEmpty(shop.getArea()), k -> areaCodes.size());
+            typeIds[row] = shop.getTypeId();
+            areas[row] = area;
+            avgPrices[row] = shop.getAvgPrice() == null ? NO_PRICE : shop.getAvgPrice();
+            scores[row] = shop.getScore() == null ? 0 : shop.getScore();
+            solds[row] = shop.getSold() == null ? 0 : shop.getSold();
+            comments[row] = shop.getComments() == null ? 0 : shop.getComments();
+            rowsOfType.computeIfAbsent(shop.getTypeId(), k -> new BitSet()).set(row);
+            rowsOfArea.computeIfAbsent(area, k -> new BitSet()).set(row);
+            if (!unsorted.get(row)) {
+                unsorted.set(row);
+                unsortedCount++;
+            }
+            if (resorting != null) {
+                resorting.set(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // sorted first by follow, a bulk load doesn't sort over and over
+        if (orders[0] != null && unsortedCount > Math.max(1024, rows / 64) && sorting.compareAndSet(false, true)) {
+            sorter.submit(() -> {
+                try {
+                    sort();
+                } catch (Exception e) {
+                    log.error("商铺目录排序失败", e);
+                } finally {
+                    sorting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sort the rows by every sort column, the catalog stays readable and writable meanwhile
+     */
+    public void sort() {
+        int n;
+        int[][] values;
+        lock.writeLock().lock();
+        try {
+            n = rows;
+            values = new int[][]{Arrays.copyOf(scores, n), Arrays.copyOf(solds, n), Arrays.copyOf(comments, n)};
+            resorting = new BitSet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        int[][] sorted = new int[values.length][];
+        long[] keys = new long[n];
+        for (int c = 0; c < values.length; c++) {
+            // value descending, then row
+            for (int row = 0; row < n; row++) {
+                keys[row] = ((long) Integer.MAX_VALUE - values[c][row]) << 32 | row;
+            }
+            Arrays.sort(keys);
+            sorted[c] = new int[n];
+            for (int i = 0; i < n; i++) {
+                sorted[c][i] = (int) keys[i];
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            orders = sorted;
+            unsorted = resorting;
+            unsortedCount = resorting.cardinality();
+            resorting = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A page of shop ids matching all the given filters, best first
+     * @param typeId   shop type, null for any
+     * @param area     area, null for any
+     * @param minPrice lowest average price, null for no limit
+     * @param maxPrice highest average price, null for no limit
+     * @param sortBy   {@link #SORT_BY_SCORE}, {@link #SORT_BY_SOLD} or {@link #SORT_BY_COMMENTS}, descending,
+     *                 then in the order the shops were loaded, which is id order
+     * @param from     offset of the page
+     * @param size     page size
+     */
+    public List<Long> query(Long typeId, String area, Long minPrice, Long maxPrice, String sortBy, int from, int size) {
+        int limit = from + size;
+        if (size <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            BitSet ofType = typeId == null ? null : rowsOfType.get(typeId);
+            Integer areaCode = area == null ? null : areaCodes.get(area);
+            if (typeId != null && ofType == null || area != null && areaCode == null) {
+                return Collections.emptyList();
+            }
+            BitSet ofArea = areaCode == null ? null : rowsOfArea.get(areaCode);
+            Filter filter = new Filter(typeId, areaCode, minPrice, maxPrice);
+            int c = SORT_BY_SOLD.equals(sortBy) ? 1 : SORT_BY_COMMENTS.equals(sortBy) ? 2 : 0;
+            int[] sort = c == 1 ? solds : c == 2 ? comments : scores;
+            int[] order = orders[c];
+
+            // min-heap of the best rows so far, the worst one on top
+            int[] heap = new int[limit];
+            int n = 0;
+            BitSet smallest = ofType == null ? ofArea
+                    : ofArea == null || ofType.cardinality() <= ofArea.cardinality() ? ofType : ofArea;
+            if (order == null || smallest != null && smallest.cardinality() * 16L < rows) {
+                // few rows to look at, or not sorted yet
+                BitSet scan = smallest == null ? live : smallest;
+                for (int row = scan.nextSetBit(0); row >= 0; row = scan.nextSetBit(row + 1)) {
+                    if (filter.test(row)) {
+                        n = offer(heap, n, row, sort);
+                    }
+                }
+            } else {
+                // the sorted rows that haven't changed, in order, so the first matches are the best of them
+                int found = 0;
+                for (int row : order) {
+                    if (!unsorted.get(row) && filter.test(row)) {
+                        n = offer(heap, n, row, sort);
+                        if (++found == limit) {
+                            break;
+                        }
+                    }
+                }
+                for (int row = unsorted.nextSetBit(0); row >= 0; row = unsorted.nextSetBit(row + 1)) {
+                    if (filter.test(row)) {
+                        n = offer(heap, n, row, sort);
+                    }
+                }
+            }
+            int[] ranked = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                ranked[i] = heap[0];
+                heap[0] = heap[i];
+                siftDown(heap, i, sort);
+            }
+            List<Long> page = new ArrayList<>(size);
+            for (int i = from; i < n; i++) {
+                page.add(ids[ranked[i]]);
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int offer(int[] heap, int n, int row, int[] sort) {
+        if (n < heap.length) {
+            heap[n] = row;
+            siftUp(heap, n, sort);
+            return n + 1;
+        }
+        if (better(row, heap[0], sort)) {
+            heap[0] = row;
+            siftDown(heap, n, sort);
+        }
+        return n;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rowOfShop.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int newRow(long id) {
+        if (rows == ids.length) {
+            int n = rows * 2;
+            ids = Arrays.copyOf(ids, n);
+            typeIds = Arrays.copyOf(typeIds, n);
+            areas = Arrays.copyOf(areas, n);
+            avgPrices = Arrays.copyOf(avgPrices, n);
+            scores = Arrays.copyOf(scores, n);
+            solds = Arrays.copyOf(solds, n);
+            comments = Arrays.copyOf(comments, n);
+        }
+        int row = rows++;
+        ids[row] = id;
+        rowOfShop.put(id, row);
+        live.set(row);
+        return row;
+    }
+
+    private boolean better(int a, int b, int[] sort) {
+        return sort[a] > sort[b] || sort[a] == sort[b] && a < b;
+    }
+
+    private void siftUp(int[] heap, int i, int[] sort) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(heap[parent], heap[i], sort)) {
+                return;
+            }
+            int t = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = t;
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int n, int[] sort) {
+        int i = 0;
+        while (true) {
+            int worst = i, left = 2 * i + 1, right = left + 1;
+            if (left < n && better(heap[worst], heap[left], sort)) {
+                worst = left;
+            }
+            if (right < n && better(heap[worst], heap[right], sort)) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+            int t = heap[worst];
+            heap[worst] = heap[i];
+            heap[i] = t;
+            i = worst;
+        }
+    }
+
+    private class Filter {
+        private final Long typeId;
+        private final Integer areaCode;
+        private final boolean priced;
+        private final long min;
+        private final long max;
+
+        Filter(Long typeId, Integer areaCode, Long minPrice, Long maxPrice) {
+            this.typeId = typeId;
+            this.areaCode = areaCode;
+            this.priced = minPrice != null || maxPrice != null;
+            this.min = minPrice == null ? Long.MIN_VALUE : minPrice;
+            this.max = maxPrice == null ? Long.MAX_VALUE : maxPrice;
+        }
+
+        boolean test(int row) {
+            return (typeId == null || typeIds[row] == typeId)
+                    && (areaCode == null || areas[row] == areaCode)
+                    && (!priced || avgPrices[row] != NO_PRICE && avgPrices[row] >= min && avgPrices[row] <= max);
+        }
+    }
+
+    private static Shop toShop(Map<Object, Object> fields) {
+        return new Shop().setId(longOf(fields.get("id")))
+                .setTypeId(longOf(fields.get("typeId")))
+                .setArea((String) fields.get("area"))
+                .setAvgPrice(longOf(fields.get("avgPrice")))
+                .setScore(intOf(fields.get("score")))
+                .setSold(intOf(fields.get("sold")))
+                .setComments(intOf(fields.get("comments")));
+    }
+
+    private static Long longOf(Object value) {
+        return StrUtil.isEmptyIfStr(value) ? null : Long.valueOf((String) value);
+    }
+
+    private static Integer intOf(Object value) {
+        return StrUtil.isEmptyIfStr(value) ? null : Integer.valueOf((String) value);
+    }
+}
@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A shop was saved or updated, published by the shop service and applied to the {@link ShopGeoIndex}
+ * and the {@link ShopNameIndex} after commit
+ */
+@Getter
+@AllArgsConstructor
+public class ShopChangedEvent {
+    /**
+     * the shop after the change
+     */
+    private final Shop shop;
+    /**
+     * type of the shop before the change, null for a new shop
+     */
+    private final Long oldTypeId;
+}
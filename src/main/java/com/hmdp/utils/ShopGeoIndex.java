@@ -0,0 +1,375 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANNEL;
+
+/**
+ * In-JVM spatial index of shop coordinates, partitioned by shop type, answering nearby queries without a network hop.
+ * <p>
+ * Each partition is a grid of {@link #CELL_DEGREES} degree cells, a cell keeps its shops in primitive arrays.
+ * A query scans rings of cells outward from the query point and stops as soon as no cell left can hold a shop
+ * closer than the k-th one found, or than the radius. Distances are haversine on the same earth radius as Redis GEO.
+ * Longitudes are not wrapped around the antimeridian.
+ * <p>
+ * The index is loaded with the shop GEO keys on startup. Saved and updated shops are published after commit
+ * on {@link RedisConstants#SHOP_GEO_CHANNEL}, so every node applies the change.
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex implements MessageListener {
+
+    private static final double CELL_DEGREES = 0.01;
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_METERS;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+
+    private final Map<Long, Partition> partitions = new ConcurrentHashMap<>();
+
+    public ShopGeoIndex(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SHOP_GEO_CHANNEL));
+    }
+
+    /**
+     * Add a shop, or move it if it is already in the partition of its type
+     */
+    public void put(long id, long typeId, double x, double y) {
+        partitions.computeIfAbsent(typeId, k -> new Partition()).put(id, x, y);
+    }
+
+    /**
+     * Remove a shop from the partition of a type
+     */
+    public void remove(long id, long typeId) {
+        Partition partition = partitions.get(typeId);
+        if (partition != null) {
+            partition.remove(id);
+        }
+    }
+
+    /**
+     * The nearest shops of a type, sorted by distance
+     * @param typeId    shop type
+     * @param x         longitude
+     * @param y         latitude
+     * @param maxMeters only shops within this distance, {@link Double#POSITIVE_INFINITY} for plain k nearest
+     * @param k         number of shops at most, from + size of the page
+     * @return the hits, empty if the type has no shops
+     */
+    public Hits nearest(long typeId, double x, double y, double maxMeters, int k) {
+        Partition partition = partitions.get(typeId);
+        if (partition == null || k <= 0) {
+            return new Hits(new long[0], new double[0]);
+        }
+        return partition.nearest(x, y, maxMeters, k);
+    }
+
+    public int size(long typeId) {
+        Partition partition = partitions.get(typeId);
+        return partition == null ? 0 : partition.size();
+    }
+
+    /**
+     * Publish a committed change of a shop to the index of every node
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getShop();
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        String message = shop.getId() + "," + (event.getOldTypeId() == null ? "" : event.getOldTypeId())
+                + "," + shop.getTypeId() + "," + shop.getX() + "," + shop.getY();
+        // applied here at once, and again when the message comes back, which changes nothing
+        apply(message);
+        try {
+            stringRedisTemplate.convertAndSend(SHOP_GEO_CHANNEL, message);
+        } catch (Exception e) {
+            log.error("发布商铺位置变更失败 {}", message, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            apply(body);
+        } catch (RuntimeException e) {
+            log.warn("invalid shop geo message {}", body);
+        }
+    }
+
+    // id,oldTypeId,typeId,x,y
+    private void apply(String message) {
+        String[] parts = message.split(",", -1);
+        long id = Long.parseLong(parts[0]);
+        long typeId = Long.parseLong(parts[2]);
+        if (!parts[1].isEmpty() && Long.parseLong(parts[1]) != typeId) {
+            remove(id, Long.parseLong(parts[1]));
+        }
+        put(id, typeId, Double.parseDouble(parts[3]), Double.parseDouble(parts[4]));
+    }
+
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    private static int cellOf(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cy << 32) | (cx & 0xffffffffL);
+    }
+
+    /**
+     * Shops found by {@link #nearest}, sorted by distance in meters
+     */
+    public static class Hits {
+        private final long[] ids;
+        private final double[] distances;
+
+        Hits(long[] ids, double[] distances) {
+            this.ids = ids;
+            this.distances = distances;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public long id(int i) {
+            return ids[i];
+        }
+
+        public double distance(int i) {
+            return distances[i];
+        }
+    }
+
+    private static class Cell {
+        private long[] ids = new long[4];
+        private double[] xs = new double[4];
+        private double[] ys = new double[4];
+        private int size;
+
+        void add(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        void remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    // swap with the last one, order within a cell doesn't matter
+                    size--;
+                    ids[i] = ids[size];
+                    xs[i] = xs[size];
+                    ys[i] = ys[size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Partition {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<Long, Cell> cells = new HashMap<>();
+        // shop id -> key of its cell, to move or remove it
+        private final Map<Long, Long> cellOfShop = new HashMap<>();
+        private int minCx = Integer.MAX_VALUE, maxCx = Integer.MIN_VALUE;
+        private int minCy = Integer.MAX_VALUE, maxCy = Integer.MIN_VALUE;
+
+        void put(long id, double x, double y) {
+            int cx = cellOf(x), cy = cellOf(y);
+            long key = cellKey(cx, cy);
+            lock.writeLock().lock();
+            try {
+                Long old = cellOfShop.put(id, key);
+                if (old != null) {
+                    cells.get(old).remove(id);
+                }
+                cells.computeIfAbsent(key, k -> new Cell()).add(id, x, y);
+                minCx = Math.min(minCx, cx);
+                maxCx = Math.max(maxCx, cx);
+                minCy = Math.min(minCy, cy);
+                maxCy = Math.max(maxCy, cy);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long id) {
+            lock.writeLock().lock();
+            try {
+                Long old = cellOfShop.remove(id);
+                if (old != null) {
+                    cells.get(old).remove(id);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return cellOfShop.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Hits nearest(double x, double y, double maxMeters, int k) {
+            int cx = cellOf(x), cy = cellOf(y);
+            long[] heapIds;
+            double[] heapDistances;
+            int n = 0;
+            lock.readLock().lock();
+            try {
+                if (cellOfShop.isEmpty()) {
+                    return new Hits(new long[0], new double[0]);
+                }
+                // max-heap of the k nearest so far, the farthest one on top, no larger than the partition
+                k = Math.min(k, cellOfShop.size());
+                heapIds = new long[k];
+                heapDistances = new double[k];
+                for (int r = 0; ; r++) {
+                    for (int dy = -r; dy <= r; dy++) {
+                        // the whole row on the top and bottom edges of the ring, the two ends elsewhere
+                        int step = dy == -r || dy == r ? 1 : Math.max(2 * r, 1);
+                        for (int dx = -r; dx <= r; dx += step) {
+                            Cell cell = cells.get(cellKey(cx + dx, cy + dy));
+                            if (cell == null) {
+                                continue;
+                            }
+                            for (int i = 0; i < cell.size; i++) {
+                                double d = distance(x, y, cell.xs[i], cell.ys[i]);
+                                if (d > maxMeters) {
+                                    continue;
+                                }
+                                if (n < k) {
+                                    heapIds[n] = cell.ids[i];
+                                    heapDistances[n] = d;
+                                    siftUp(heapIds, heapDistances, n++);
+                                } else if (d < heapDistances[0]) {
+                                    heapIds[0] = cell.ids[i];
+                                    heapDistances[0] = d;
+                                    siftDown(heapIds, heapDistances, n);
+                                }
+                            }
+                        }
+                    }
+                    // every cell holding a shop has been scanned
+                    if (cx - r <= minCx && cx + r >= maxCx && cy - r <= minCy && cy + r >= maxCy) {
+                        break;
+                    }
+                    // no cell outside the ring is closer than its border
+                    double border = borderDistance(x, y, cx, cy, r);
+                    if (border > maxMeters || n == k && heapDistances[0] <= border) {
+                        break;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            // pop the heap from the farthest down
+            long[] ids = new long[n];
+            double[] distances = new double[n];
+            for (int i = n - 1; i >= 0; i--) {
+                ids[i] = heapIds[0];
+                distances[i] = heapDistances[0];
+                heapIds[0] = heapIds[i];
+                heapDistances[0] = heapDistances[i];
+                siftDown(heapIds, heapDistances, i);
+            }
+            return new Hits(ids, distances);
+        }
+
+        // a lower bound of the distance from the point to any place outside the ring r around its cell
+        private static double borderDistance(double x, double y, int cx, int cy, int r) {
+            double south = y - (cy - r) * CELL_DEGREES;
+            double north = (cy + r + 1) * CELL_DEGREES - y;
+            double west = x - (cx - r) * CELL_DEGREES;
+            double east = (cx + r + 1) * CELL_DEGREES - x;
+            // a degree of longitude is shortest at the latitude of the ring edge nearest to a pole
+            double maxLat = Math.min(90, Math.max(Math.abs((cy - r) * CELL_DEGREES), Math.abs((cy + r + 1) * CELL_DEGREES)));
+            double lonMeters = Math.min(west, east) * METERS_PER_DEGREE * Math.cos(Math.toRadians(maxLat));
+            return Math.min(Math.min(south, north) * METERS_PER_DEGREE, lonMeters);
+        }
+
+        private static void siftUp(long[] ids, double[] distances, int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] >= distances[i]) {
+                    return;
+                }
+                swap(ids, distances, parent, i);
+                i = parent;
+            }
+        }
+
+        private static void siftDown(long[] ids, double[] distances, int n) {
+            int i = 0;
+            while (true) {
+                int largest = i, left = 2 * i + 1, right = left + 1;
+                if (left < n && distances[left] > distances[largest]) {
+                    largest = left;
+                }
+                if (right < n && distances[right] > distances[largest]) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(ids, distances, i, largest);
+                i = largest;
+            }
+        }
+
+        private static void swap(long[] ids, double[] distances, int i, int j) {
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            double d = distances[i];
+            distances[i] = distances[j];
+            distances[j] = d;
+        }
+    }
+}
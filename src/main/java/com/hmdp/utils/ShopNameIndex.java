@@ -0,0 +1,514 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_CHANNEL;
+
+/**
+ * In-memory inverted index of shop names, replacing LIKE '%name%' scans of tb_shop.
+ * <p>
+ * Names are lower-cased and split into runs of letters and digits. Every char and every two adjacent chars of a
+ * run is a term, which suits Chinese names without a dictionary. A term maps to the sorted doc numbers of the
+ * names containing it, delta and varint encoded in a byte array. Doc numbers only grow, a renamed shop gets a new
+ * doc and the old one is marked deleted until the next compaction, so postings are always appended in order.
+ * <p>
+ * A query intersects the postings of its terms starting from the shortest list, checks the candidates really
+ * contain the query, and ranks them by score, then sold, then id.
+ * Changes are applied on every node through Redis pub/sub, like {@link ShopGeoIndex}.
+ */
+@Slf4j
+@Component
+public class ShopNameIndex implements MessageListener {
+
+    private static final int COMPACT_MIN_DELETED = 1024;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer container;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // term -> docs of the names containing it
+    private Map<Integer, Postings> postings = new HashMap<>();
+    // doc -> shop id, normalized name and rank (score << 32 | sold)
+    private long[] ids = new long[1024];
+    private String[] names = new String[1024];
+    private long[] ranks = new long[1024];
+    private int docs;
+    private BitSet deleted = new BitSet();
+    private int deletedCount;
+    private Map<Long, Integer> docOfShop = new HashMap<>();
+
+    private volatile boolean loaded;
+
+    public ShopNameIndex(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SHOP_NAME_CHANNEL));
+    }
+
+    /**
+     * @return whether all shops have been loaded, searches before that would miss shops
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void markLoaded() {
+        loaded = true;
+    }
+
+    /**
+     * Add a shop, or update its name and rank
+     */
+    public void put(long id, String name, Integer score, Integer sold) {
+        String normalized = normalize(name == null ? "" : name);
+        long rank = (long) (score == null ? 0 : score) << 32 | (sold == null ? 0 : sold) & 0xffffffffL;
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOfShop.get(id);
+            if (doc != null && names[doc].equals(normalized)) {
+                // same terms, only the rank changes
+                ranks[doc] = rank;
+                return;
+            }
+            if (doc != null) {
+                delete(doc);
+            }
+            add(id, normalized, rank);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOfShop.remove(id);
+            if (doc != null) {
+                delete(doc);
+                compactIfNeeded();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A page of the shops whose names contain the query
+     * @param query name keyword
+     * @param from  offset of the page
+     * @param size  page size
+     */
+    public Matches search(String query, int from, int size) {
+        return search(query, null, from, size);
+    }
+
+    /**
+     * The page of the shops whose names contain the query, ranked after the cursor
+     * @param query name keyword
+     * @param after cursor from the previous page, null for the first page
+     * @param size  page size
+     */
+    public Matches searchAfter(String query, KeysetCursor after, int size) {
+        return search(query, after, 0, size);
+    }
+
+    private Matches search(String query, KeysetCursor after, int from, int size) {
+        String[] runs = normalize(query).trim().split(" +");
+        int[] terms = queryTerms(runs);
+        int limit = from + size;
+        if (terms.length == 0 || size <= 0) {
+            return new Matches(Collections.emptyList(), null);
+        }
+        lock.readLock().lock();
+        try {
+            int[] candidates = intersect(terms);
+            // runs of one or two chars are terms themselves, longer ones may match pairs spread over the name
+            boolean verify = Arrays.stream(runs).anyMatch(run -> run.length() > 2);
+            // min-heap of the best docs so far, the worst one on top
+            int[] heap = new int[limit];
+            int n = 0;
+            for (int doc : candidates) {
+                if (doc < 0) {
+                    break;
+                }
+                if (deleted.get(doc) || verify && !containsAll(names[doc], runs)
+                        || after != null && !rankedAfter(doc, after)) {
+                    continue;
+                }
+                if (n < limit) {
+                    heap[n] = doc;
+                    siftUp(heap, n++);
+                } else if (better(doc, heap[0])) {
+                    heap[0] = doc;
+                    siftDown(heap, n);
+                }
+            }
+            // pop the heap from the worst up
+            int[] ranked = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                ranked[i] = heap[0];
+                heap[0] = heap[i];
+                siftDown(heap, i);
+            }
+            List<Long> page = new ArrayList<>(size);
+            for (int i = from; i < n; i++) {
+                page.add(ids[ranked[i]]);
+            }
+            String next = null;
+            if (page.size() == size) {
+                int last = ranked[n - 1];
+                next = KeysetCursor.encode(ranks[last], ids[last]);
+            }
+            return new Matches(page, next);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a committed change of a shop name or rank to the index of every node
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getShop();
+        String message = JSONUtil.toJsonStr(new Shop().setId(shop.getId()).setName(shop.getName())
+                .setScore(shop.getScore()).setSold(shop.getSold()));
+        // applied here at once, and again when the message comes back, which changes nothing
+        apply(message);
+        try {
+            stringRedisTemplate.convertAndSend(SHOP_NAME_CHANNEL, message);
+        } catch (Exception e) {
+            log.error("发布商铺名称变更失败 {}", message, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            apply(body);
+        } catch (RuntimeException e) {
+            log.warn("invalid shop name message {}", body);
+        }
+    }
+
+    private void apply(String message) {
+        Shop shop = JSONUtil.toBean(message, Shop.class);
+        put(shop.getId(), shop.getName(), shop.getScore(), shop.getSold());
+    }
+
+    /**
+     * Size of the index, the bytes are estimated for a 64 bit JVM with compressed oops
+     */
+    public Map<String, Long> stats() {
+        lock.readLock().lock();
+        try {
+            long postingBytes = 0, postingCapacity = 0;
+            for (Postings p : postings.values()) {
+                postingBytes += p.length;
+                postingCapacity += 16 + p.data.length;
+            }
+            long nameBytes = 0;
+            for (int doc = 0; doc < docs; doc++) {
+                nameBytes += 24 + 16 + 2L * names[doc].length();
+            }
+            Map<String, Long> stats = new LinkedHashMap<>();
+            stats.put("shops", (long) docOfShop.size());
+            stats.put("deletedDocs", (long) deletedCount);
+            stats.put("terms", (long) postings.size());
+            stats.put("postingBytes", postingBytes);
+            // a map node, a boxed key and a Postings object per term, plus the table
+            long termBytes = postings.size() * (32L + 16 + 32 + 8) + postingCapacity;
+            // the doc arrays, the names and the id -> doc map
+            long docBytes = ids.length * (8L + 8 + 4) + nameBytes + docOfShop.size() * (32L + 16 + 16 + 8);
+            stats.put("estimatedBytes", termBytes + docBytes);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(long id, String normalized, long rank) {
+        if (docs == ids.length) {
+            ids = Arrays.copyOf(ids, docs * 2);
+            names = Arrays.copyOf(names, docs * 2);
+            ranks = Arrays.copyOf(ranks, docs * 2);
+        }
+        int doc = docs++;
+        ids[doc] = id;
+        names[doc] = normalized;
+        ranks[doc] = rank;
+        docOfShop.put(id, doc);
+        for (int term : docTerms(normalized)) {
+            postings.computeIfAbsent(term, k -> new Postings()).add(doc);
+        }
+    }
+
+    private void delete(int doc) {
+        deleted.set(doc);
+        deletedCount++;
+    }
+
+    // renumber the live docs once enough of them are deleted
+    private void compactIfNeeded() {
+        if (deletedCount < COMPACT_MIN_DELETED || deletedCount <= docOfShop.size() / 4) {
+            return;
+        }
+        long[] oldIds = ids;
+        String[] oldNames = names;
+        long[] oldRanks = ranks;
+        int oldDocs = docs;
+        BitSet oldDeleted = deleted;
+        int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, docOfShop.size())) * 2);
+        ids = new long[capacity];
+        names = new String[capacity];
+        ranks = new long[capacity];
+        docs = 0;
+        deleted = new BitSet();
+        deletedCount = 0;
+        postings = new HashMap<>();
+        docOfShop = new HashMap<>();
+        for (int doc = 0; doc < oldDocs; doc++) {
+            if (!oldDeleted.get(doc)) {
+                add(oldIds[doc], oldNames[doc], oldRanks[doc]);
+            }
+        }
+        log.debug("compacted shop name index, {} shops", docs);
+    }
+
+    // candidates padded with -1, null postings make the result empty
+    private int[] intersect(int[] terms) {
+        Postings[] lists = new Postings[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            lists[i] = postings.get(terms[i]);
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.count, b.count));
+        int[] candidates = lists[0].decode();
+        int n = candidates.length;
+        for (int i = 1; i < lists.length && n > 0; i++) {
+            n = lists[i].retain(candidates, n);
+        }
+        if (n < candidates.length) {
+            candidates[n] = -1;
+        }
+        return candidates;
+    }
+
+    private boolean rankedAfter(int doc, KeysetCursor after) {
+        return ranks[doc] < after.getSortKey() || ranks[doc] == after.getSortKey() && ids[doc] > after.getId();
+    }
+
+    private boolean better(int a, int b) {
+        return ranks[a] > ranks[b] || ranks[a] == ranks[b] && ids[a] < ids[b];
+    }
+
+    private void siftUp(int[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(heap[parent], heap[i])) {
+                return;
+            }
+            int t = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = t;
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int n) {
+        int i = 0;
+        while (true) {
+            int worst = i, left = 2 * i + 1, right = left + 1;
+            if (left < n && better(heap[worst], heap[left])) {
+                worst = left;
+            }
+            if (right < n && better(heap[worst], heap[right])) {
+                worst = right;
+            }
+            if (worst == i) {
+                return;
+            }
+            int t = heap[worst];
+            heap[worst] = heap[i];
+            heap[i] = t;
+            i = worst;
+        }
+    }
+
+    private static boolean containsAll(String name, String[] runs) {
+        for (String run : runs) {
+            if (!name.contains(run)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // lower case, every char but letters and digits becomes a space
+    static String normalize(String s) {
+        char[] chars = new char[s.length()];
+        for (int i = 0; i < chars.length; i++) {
+            char c = Character.toLowerCase(s.charAt(i));
+            chars[i] = Character.isLetterOrDigit(c) ? c : ' ';
+        }
+        return new String(chars);
+    }
+
+    // every char and every pair of adjacent chars within a run
+    private static int[] docTerms(String normalized) {
+        int[] terms = new int[normalized.length() * 2];
+        int n = 0;
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            terms[n++] = c << 16;
+            if (i + 1 < normalized.length() && normalized.charAt(i + 1) != ' ') {
+                terms[n++] = c << 16 | normalized.charAt(i + 1);
+            }
+        }
+        return Arrays.stream(terms, 0, n).distinct().toArray();
+    }
+
+    // the pairs of adjacent chars of each run, or the char of a one char run
+    private static int[] queryTerms(String[] runs) {
+        int[] terms = new int[runs.length * 16];
+        int n = 0;
+        for (String run : runs) {
+            if (run.isEmpty()) {
+                continue;
+            }
+            if (run.length() == 1) {
+                terms = ensure(terms, n + 1);
+                terms[n++] = run.charAt(0) << 16;
+            }
+            for (int i = 0; i + 1 < run.length(); i++) {
+                terms = ensure(terms, n + 1);
+                terms[n++] = run.charAt(i) << 16 | run.charAt(i + 1);
+            }
+        }
+        return Arrays.stream(terms, 0, n).distinct().toArray();
+    }
+
+    private static int[] ensure(int[] a, int size) {
+        return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, a.length * 2));
+    }
+
+    /**
+     * A page of matched shop ids, best first
+     */
+    @Getter
+    public static class Matches {
+        private final List<Long> ids;
+        /**
+         * cursor of the next page, null if there is no more data
+         */
+        private final String next;
+
+        Matches(List<Long> ids, String next) {
+            this.ids = ids;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Sorted doc numbers, each stored as the varint of its gap to the previous one
+     */
+    private static class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+
+        void add(int doc) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + 5, data.length * 2));
+            }
+            int gap = doc - last;
+            while ((gap & ~0x7f) != 0) {
+                data[length++] = (byte) (gap & 0x7f | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = doc;
+            count++;
+        }
+
+        int[] decode() {
+            int[] docs = new int[count];
+            int doc = -1;
+            for (int i = 0, pos = 0; i < count; i++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[pos++];
+                    gap |= (b & 0x7f) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                doc += gap;
+                docs[i] = doc;
+            }
+            return docs;
+        }
+
+        /**
+         * Keep the first n candidates that are also in this list, in place
+         * @return the number of candidates kept
+         */
+        int retain(int[] candidates, int n) {
+            int kept = 0, c = 0, doc = -1, pos = 0;
+            for (int i = 0; i < count && c < n; i++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[pos++];
+                    gap |= (b & 0x7f) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                doc += gap;
+                while (c < n && candidates[c] < doc) {
+                    c++;
+                }
+                if (c < n && candidates[c] == doc) {
+                    candidates[kept++] = doc;
+                    c++;
+                }
+            }
+            return kept;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_CHANNEL;
+import static com.hmdp.utils.SystemConstants.SHOP_SUGGEST_SIZE;
+
+/**
+ * Shop name suggestions by prefix from an immutable trie, readers never take a lock.
+ * <p>
+ * The trie is a burst trie in flat arrays over the shops sorted by lower-cased name: every node covers the range of
+ * shops starting with its prefix and keeps the best {@link SystemConstants#SHOP_SUGGEST_SIZE} of them by score, then
+ * sold, computed at build time. A node covering no more than {@link #LEAF_SIZE} shops has no children, a query
+ * ending there scans its range.
+ * <p>
+ * Changes go to a map of all shops, the same changes {@link ShopNameIndex} receives, and a background thread
+ * rebuilds the trie at most every {@link #REBUILD_INTERVAL_MILLIS} and swaps it in.
+ */
+@Slf4j
+@Component
+public class ShopSuggestIndex implements MessageListener {
+
+    private static final int LEAF_SIZE = 32;
+    private static final long REBUILD_INTERVAL_MILLIS = 5000;
+
+    private final RedisMessageListenerContainer container;
+
+    // shop id -> name and rank, the source of the next trie
+    private final Map<Long, Entry> shops = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private volatile Trie trie = new Trie(new Entry[0]);
+
+    private final ScheduledExecutorService rebuilder =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("shop-suggest-", true));
+
+    public ShopSuggestIndex(RedisMessageListenerContainer container) {
+        this.container = container;
+    }
+
+    @PostConstruct
+    private void init() {
+        container.addMessageListener(this, new ChannelTopic(SHOP_NAME_CHANNEL));
+        rebuilder.scheduleWithFixedDelay(() -> {
+            try {
+                if (dirty.getAndSet(false)) {
+                    rebuild();
+                }
+            } catch (Exception e) {
+                log.error("重建商铺名称前缀索引失败", e);
+            }
+        }, REBUILD_INTERVAL_MILLIS, REBUILD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuilder.shutdownNow();
+    }
+
+    /**
+     * Add or update a shop, seen by queries after the next rebuild
+     */
+    public void put(long id, String name, Integer score, Integer sold) {
+        if (name == null) {
+            return;
+        }
+        long rank = (long) (score == null ? 0 : score) << 32 | (sold == null ? 0 : sold) & 0xffffffffL;
+        shops.put(id, new Entry(id, name, name.toLowerCase(), rank));
+        dirty.set(true);
+    }
+
+    public void remove(long id) {
+        if (shops.remove(id) != null) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Build a trie of the current shops and swap it in
+     */
+    public void rebuild() {
+        long begin = System.nanoTime();
+        Trie next = new Trie(shops.values().toArray(new Entry[0]));
+        trie = next;
+        log.debug("rebuilt shop suggest trie of {} shops, {} nodes in {} ms", next.entries.length, next.nodes,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+
+    /**
+     * The best shops whose names start with the prefix, ignoring case
+     * @param prefix what the user has typed
+     * @param size   number of suggestions at most, up to {@link SystemConstants#SHOP_SUGGEST_SIZE}
+     * @return shops with only id and name, best first
+     */
+    public List<Shop> suggest(String prefix, int size) {
+        if (prefix == null || prefix.trim().isEmpty() || size <= 0) {
+            return Collections.emptyList();
+        }
+        Trie t = trie;
+        Entry[] found = t.suggest(prefix.trim().toLowerCase(), Math.min(size, SHOP_SUGGEST_SIZE));
+        List<Shop> suggestions = new ArrayList<>(found.length);
+        for (Entry e : found) {
+            suggestions.add(new Shop().setId(e.id).setName(e.name));
+        }
+        return suggestions;
+    }
+
+    /**
+     * Changes on this node, before they come back from Redis
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Shop shop = event.getShop();
+        put(shop.getId(), shop.getName(), shop.getScore(), shop.getSold());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Shop shop = JSONUtil.toBean(body, Shop.class);
+            put(shop.getId(), shop.getName(), shop.getScore(), shop.getSold());
+        } catch (RuntimeException e) {
+            log.warn("invalid shop name message {}", body);
+        }
+    }
+
+    private static boolean better(Entry a, Entry b) {
+        return a.rank > b.rank || a.rank == b.rank && a.id < b.id;
+    }
+
+    private static class Entry {
+        private final long id;
+        private final String name;
+        private final String key;
+        private final long rank;
+
+        Entry(long id, String name, String key, long rank) {
+            this.id = id;
+            this.name = name;
+            this.key = key;
+            this.rank = rank;
+        }
+    }
+
+    private static class Trie {
+        // shops sorted by key, every node covers a range of them
+        private final Entry[] entries;
+        private int nodes;
+        // per node: char on the edge from its parent, range of entries, children, offset of its best entries
+        private char[] labels = new char[1024];
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private int[] firstChild = new int[1024];
+        private int[] childCount = new int[1024];
+        private int[] topOffset = new int[1024];
+        // best entries of the inner nodes, SHOP_SUGGEST_SIZE or the whole range for each
+        private int[] tops = new int[1024];
+        private int topsSize;
+
+        Trie(Entry[] entries) {
+            Arrays.sort(entries, (a, b) -> a.key.compareTo(b.key));
+            this.entries = entries;
+            // breadth first, so the children of a node get consecutive numbers
+            int[] depth = new int[1024];
+            addNode((char) 0, 0, entries.length);
+            for (int node = 0; node < nodes; node++) {
+                if (to[node] - from[node] <= LEAF_SIZE) {
+                    firstChild[node] = -1;
+                    continue;
+                }
+                topOffset[node] = topsSize;
+                for (int e : best(from[node], to[node], null, SHOP_SUGGEST_SIZE)) {
+                    tops = ensure(tops, topsSize + 1);
+                    tops[topsSize++] = e;
+                }
+                // keys as long as the prefix sort first and end here
+                int d = depth[node];
+                int i = from[node];
+                while (i < to[node] && entries[i].key.length() == d) {
+                    i++;
+                }
+                firstChild[node] = nodes;
+                while (i < to[node]) {
+                    char c = entries[i].key.charAt(d);
+                    int j = i + 1;
+                    while (j < to[node] && entries[j].key.charAt(d) == c) {
+                        j++;
+                    }
+                    depth = ensure(depth, nodes + 1);
+                    depth[nodes] = d + 1;
+                    addNode(c, i, j);
+                    i = j;
+                }
+                childCount[node] = nodes - firstChild[node];
+            }
+        }
+
+        private void addNode(char label, int lo, int hi) {
+            if (nodes == labels.length) {
+                int n = nodes * 2;
+                labels = Arrays.copyOf(labels, n);
+                from = Arrays.copyOf(from, n);
+                to = Arrays.copyOf(to, n);
+                firstChild = Arrays.copyOf(firstChild, n);
+                childCount = Arrays.copyOf(childCount, n);
+                topOffset = Arrays.copyOf(topOffset, n);
+            }
+            labels[nodes] = label;
+            from[nodes] = lo;
+            to[nodes] = hi;
+            nodes++;
+        }
+
+        Entry[] suggest(String prefix, int size) {
+            if (entries.length == 0) {
+                return new Entry[0];
+            }
+            int node = 0;
+            int d = 0;
+            while (d < prefix.length() && firstChild[node] >= 0) {
+                node = child(node, prefix.charAt(d));
+                if (node < 0) {
+                    return new Entry[0];
+                }
+                d++;
+            }
+            int[] best;
+            if (d == prefix.length() && firstChild[node] >= 0) {
+                best = Arrays.copyOfRange(tops, topOffset[node],
+                        topOffset[node] + Math.min(size, Math.min(SHOP_SUGGEST_SIZE, to[node] - from[node])));
+            } else {
+                // a leaf, only some of its shops may start with the rest of the prefix
+                best = best(from[node], to[node], prefix, size);
+            }
+            Entry[] found = new Entry[best.length];
+            for (int i = 0; i < best.length; i++) {
+                found[i] = entries[best[i]];
+            }
+            return found;
+        }
+
+        // binary search of the children, sorted by label
+        private int child(int node, char c) {
+            int lo = firstChild[node], hi = lo + childCount[node] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (labels[mid] < c) {
+                    lo = mid + 1;
+                } else if (labels[mid] > c) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        // the best entries of a range, best first, only those starting with the prefix if not null
+        private int[] best(int lo, int hi, String prefix, int size) {
+            int[] best = new int[size];
+            int n = 0;
+            for (int i = lo; i < hi; i++) {
+                if (prefix != null && !entries[i].key.startsWith(prefix)) {
+                    continue;
+                }
+                // insertion into the short sorted list
+                if (n == size && !better(entries[i], entries[best[n - 1]])) {
+                    continue;
+                }
+                int j = n < size ? n++ : n - 1;
+                while (j > 0 && better(entries[i], entries[best[j - 1]])) {
+                    best[j] = best[j - 1];
+                    j--;
+                }
+                best[j] = i;
+            }
+            return n == size ? best : Arrays.copyOf(best, n);
+        }
+
+        private static int[] ensure(int[] a, int size) {
+            return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, a.length * 2));
+        }
+    }
+}
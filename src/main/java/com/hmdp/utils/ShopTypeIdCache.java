@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * The ids of the shops of each type in id order, so category pages are a slice of ids plus a batch entity cache
+ * lookup instead of a SQL query.
+ * <p>
+ * Each type has a version in Redis, bumped after commit whenever a shop joins or leaves the type. The ids of a
+ * version are a Redis list loaded from the database by one node under a lock, and copied into a local array by
+ * every node, so serving a page costs one GET of the version. A bumped version makes every node reload.
+ */
+@Slf4j
+@Component
+public class ShopTypeIdCache {
+
+    // the only element of the list of a type with no shops
+    private static final String EMPTY = "0";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisLockClient lockClient;
+
+    private final Map<Long, TypeIds> local = new ConcurrentHashMap<>();
+
+    public ShopTypeIdCache(StringRedisTemplate stringRedisTemplate, RedisLockClient lockClient) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.lockClient = lockClient;
+    }
+
+    /**
+     * A page of the ids of a type
+     * @param typeId     shop type
+     * @param from       offset of the page
+     * @param size       page size
+     * @param dbFallback loads the ids of a type from the database in id order
+     */
+    public List<Long> page(Long typeId, int from, int size, Function<Long, List<Long>> dbFallback) {
+        long[] ids = ids(typeId, dbFallback);
+        return slice(ids, from, Math.min(ids.length, from + size));
+    }
+
+    /**
+     * The ids of a type after the given one
+     * @param afterId    last id of the previous page, null for the first page
+     */
+    public List<Long> after(Long typeId, Long afterId, int size, Function<Long, List<Long>> dbFallback) {
+        long[] ids = ids(typeId, dbFallback);
+        int from = 0;
+        if (afterId != null) {
+            int i = Arrays.binarySearch(ids, afterId);
+            from = i >= 0 ? i + 1 : -i - 1;
+        }
+        return slice(ids, from, Math.min(ids.length, from + size));
+    }
+
+    /**
+     * Make every node reload the ids of a type
+     */
+    public void invalidate(Long typeId) {
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_IDS_VERSION_KEY + typeId);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        Long typeId = event.getShop().getTypeId();
+        Long oldTypeId = event.getOldTypeId();
+        // a new shop, or a shop moved to another type
+        if (typeId != null && !typeId.equals(oldTypeId)) {
+            invalidate(typeId);
+            if (oldTypeId != null) {
+                invalidate(oldTypeId);
+            }
+        }
+    }
+
+    private long[] ids(Long typeId, Function<Long, List<Long>> dbFallback) {
+        String v = stringRedisTemplate.opsForValue().get(CACHE_SHOP_IDS_VERSION_KEY + typeId);
+        long version = v == null ? 0 : Long.parseLong(v);
+        TypeIds cached = local.get(typeId);
+        if (cached != null && cached.version == version) {
+            return cached.ids;
+        }
+        long[] ids = load(typeId, version, dbFallback);
+        local.put(typeId, new TypeIds(version, ids));
+        return ids;
+    }
+
+    private long[] load(Long typeId, long version, Function<Long, List<Long>> dbFallback) {
+        String key = CACHE_SHOP_IDS_KEY + typeId + ":" + version;
+        List<String> values = stringRedisTemplate.opsForList().range(key, 0, -1);
+        if (values != null && !values.isEmpty()) {
+            return toIds(values);
+        }
+        // one node loads the version from the database, the others wait and read it from Redis
+        ILock lock = lockClient.getLock(LOCK_SHOP_IDS_KEY + typeId);
+        try {
+            if (!lock.tryLock(3, TimeUnit.SECONDS)) {
+                return toLongs(dbFallback.apply(typeId));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return toLongs(dbFallback.apply(typeId));
+        }
+        try {
+            values = stringRedisTemplate.opsForList().range(key, 0, -1);
+            if (values != null && !values.isEmpty()) {
+                return toIds(values);
+            }
+            long[] ids = toLongs(dbFallback.apply(typeId));
+            List<String> list = new ArrayList<>(Math.max(ids.length, 1));
+            for (long id : ids) {
+                list.add(String.valueOf(id));
+            }
+            if (list.isEmpty()) {
+                list.add(EMPTY);
+            }
+            // one RPUSH, so readers see the whole list or none of it
+            stringRedisTemplate.opsForList().rightPushAll(key, list);
+            stringRedisTemplate.expire(key, CACHE_SHOP_IDS_TTL, TimeUnit.MINUTES);
+            if (version > 0) {
+                // nobody reads the previous version any more
+                stringRedisTemplate.delete(CACHE_SHOP_IDS_KEY + typeId + ":" + (version - 1));
+            }
+            log.debug("loaded {} shop ids of type {} version {}", ids.length, typeId, version);
+            return ids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long[] toIds(List<String> values) {
+        if (values.size() == 1 && EMPTY.equals(values.get(0))) {
+            return new long[0];
+        }
+        long[] ids = new long[values.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Long.parseLong(values.get(i));
+        }
+        return ids;
+    }
+
+    private static long[] toLongs(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static List<Long> slice(long[] ids, int from, int to) {
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        List<Long> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(ids[i]);
+        }
+        return page;
+    }
+
+    private static class TypeIds {
+        private final long version;
+        private final long[] ids;
+
+        TypeIds(long version, long[] ids) {
+            this.version = version;
+            this.ids = ids;
+        }
+    }
+}
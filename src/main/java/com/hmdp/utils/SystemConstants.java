@@ -1,8 +1,25 @@
 package com.hmdp.utils;
 
 public class SystemConstants {
-    public static final String IMAGE_UPLOAD_DIR = "D:\\lesson\\nginx-1.18.0\\html\\hmdp\\imgs\\";
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // deepest page of offset pagination, further pages only by cursor
+    public static final int MAX_PAGE = 100;
+    // the latitude limit of Redis GEO, Web Mercator
+    public static final double GEO_MAX_LATITUDE = 85.05112878;
+    public static final int ID_SEGMENT_SIZE = 1000;
+    public static final int ORDER_BATCH_SIZE = 200;
+    public static final long ORDER_BATCH_LINGER_MILLIS = 20;
+    public static final double SHOP_NEARBY_RADIUS_METERS = 5000;
+    public static final int SHOP_GEO_LOAD_BATCH_SIZE = 1000;
+    public static final int SHOP_SUGGEST_SIZE = 10;
+    public static final int SHOP_TYPE_WARM_PAGES = 3;
+    public static final int[] IMAGE_VARIANT_WIDTHS = {240, 480, 960};
+    public static final float IMAGE_VARIANT_QUALITY = 0.8f;
+    public static final long IMAGE_VARIANT_MAX_PIXELS = 40_000_000L;
+    public static final int IMAGE_CACHE_MAX_FILE_SIZE = 16 * 1024;
+    public static final long IMAGE_CACHE_MAX_BYTES = 32L * 1024 * 1024;
+    public static final long IMAGE_GC_INITIAL_DELAY_MINUTES = 10;
+    public static final int IMAGE_GC_SCAN_BATCH_SIZE = 1000;
 }
@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel, adding a task and expiring it cost O(1) no matter how many tasks are pending.
+ * <p>
+ * Level 0 has {@link #WHEEL_SIZE} slots of one tick each, every next level has {@link #WHEEL_SIZE} slots
+ * as wide as the whole level below. A task is put in the lowest level whose span covers its delay, and
+ * moved down a level whenever the lower levels wrap around, until it expires from level 0.
+ * With 64 slots and 4 levels, delays up to 64^4 ticks are kept exactly, longer ones wait in the top level.
+ * <p>
+ * Not thread safe, the owner serializes {@link #add} and {@link #advance}.
+ */
+public class TimingWheel<T> {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final long startMillis;
+    // slots[level][index]
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.slots = new ArrayList<>(LEVELS * WHEEL_SIZE);
+        for (int i = 0; i < LEVELS * WHEEL_SIZE; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedule a task
+     * @param task       the task
+     * @param expireAt   expiration in epoch millis, a time already passed expires on the next tick
+     */
+    public void add(T task, long expireAt) {
+        long tick = (expireAt - startMillis + tickMillis - 1) / tickMillis;
+        place(new Entry<>(task, Math.max(tick, currentTick + 1)));
+        size++;
+    }
+
+    /**
+     * Move the wheel one tick forward
+     * @return the tasks expired at the new tick
+     */
+    public List<T> advance() {
+        currentTick++;
+        // cascade the higher levels whose lower levels just wrapped around
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (level * WHEEL_BITS)) - 1)) != 0) {
+                break;
+            }
+            List<Entry<T>> slot = slot(level, currentTick);
+            List<Entry<T>> entries = new ArrayList<>(slot);
+            slot.clear();
+            entries.forEach(this::place);
+        }
+        List<Entry<T>> slot = slot(0, currentTick);
+        if (slot.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<T> expired = new ArrayList<>(slot.size());
+        for (Entry<T> entry : slot) {
+            expired.add(entry.task);
+        }
+        slot.clear();
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * @return the epoch millis the next tick is due
+     */
+    public long nextTickMillis() {
+        return startMillis + (currentTick + 1) * tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << ((level + 1) * WHEEL_BITS))) {
+            level++;
+        }
+        long tick = entry.tick;
+        if (level == LEVELS - 1 && delta >= (1L << (LEVELS * WHEEL_BITS))) {
+            // beyond the span of the wheel, park it in the farthest top slot and re-place it from there
+            tick = currentTick + (1L << (LEVELS * WHEEL_BITS)) - 1;
+        }
+        slot(level, tick).add(entry);
+    }
+
+    private List<Entry<T>> slot(int level, long tick) {
+        int index = (int) ((tick >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+        return slots.get(level * WHEEL_SIZE + index);
+    }
+
+    private static class Entry<T> {
+        private final T task;
+        private final long tick;
+
+        Entry(T task, long tick) {
+            this.task = task;
+            this.tick = tick;
+        }
+    }
+}
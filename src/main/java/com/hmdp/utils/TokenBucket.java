@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ * <p>
+ * Instead of a token count the bucket keeps the time at which it will be full again, so taking a
+ * token is a single CAS on one {@link AtomicLong} and refilling needs no timer: a token is available
+ * while that time is less than {@code burst} token intervals ahead of now.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long capacityNanos;
+    // System.nanoTime() at which the bucket is full again
+    private final AtomicLong fullAt;
+
+    /**
+     * @param permitsPerSecond refill rate
+     * @param burst            bucket size, the number of tokens that can be taken at once
+     */
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.capacityNanos = intervalNanos * Math.max(burst, 1);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take a token if one is available, never blocks
+     */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.hmdp.utils;
 
 import com.hmdp.dto.UserDTO;
 
+import java.util.function.Supplier;
+
 public class UserHolder {
     private static final ThreadLocal<UserDTO> tl = new ThreadLocal<>();
 
@@ -16,4 +18,26 @@ public class UserHolder {
     public static void removeUser(){
         tl.remove();
     }
+
+    /**
+     * Bind the current user to a task that runs on another thread
+     * @param task the task
+     * @return a task that runs with the user of the calling thread, and restores the worker's own afterwards
+     */
+    public static <T> Supplier<T> wrap(Supplier<T> task){
+        UserDTO user = tl.get();
+        return () -> {
+            UserDTO previous = tl.get();
+            tl.set(user);
+            try {
+                return task.get();
+            } finally {
+                if (previous == null) {
+                    tl.remove();
+                } else {
+                    tl.set(previous);
+                }
+            }
+        };
+    }
 }
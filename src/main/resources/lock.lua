@@ -0,0 +1,12 @@
+-- take a reentrant lock, the hash maps the owner token to its hold count
+-- KEYS[1] lock key
+-- ARGV[1] owner token   {node id}:{thread id}
+-- ARGV[2] lease in milliseconds
+-- returns nil when the lock is taken, else the milliseconds left on the holder's lease
+
+if redis.call('exists', KEYS[1]) == 0 or redis.call('hexists', KEYS[1], ARGV[1]) == 1 then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return nil
+end
+return redis.call('pttl', KEYS[1])
@@ -0,0 +1,11 @@
+-- extend the lease of a lock still held by its owner
+-- KEYS[1] lock key
+-- ARGV[1] owner token
+-- ARGV[2] lease in milliseconds
+-- returns 1 if renewed, 0 if the owner no longer holds the lock
+
+if redis.call('hexists', KEYS[1], ARGV[1]) == 1 then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
@@ -0,0 +1,12 @@
+-- claim timed out orders, an order removed here is owned by the caller and by no other node
+-- KEYS[1] order timeout key   order:timeout, sorted set of order ids scored by payment deadline
+-- ARGV order ids
+-- returns the order ids claimed
+
+local claimed = {}
+for i = 1, #ARGV do
+    if redis.call('zrem', KEYS[1], ARGV[i]) == 1 then
+        claimed[#claimed + 1] = ARGV[i]
+    end
+end
+return claimed
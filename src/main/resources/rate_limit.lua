@@ -0,0 +1,30 @@
+-- cluster-wide token bucket
+-- KEYS[1] limit key   limit:seckill:{voucherId}, hash of tokens and the last refill time in microseconds
+-- ARGV[1] permits per second
+-- ARGV[2] burst, the bucket size
+-- returns 1 when a token is taken, 0 when the bucket is empty
+
+-- TIME makes the script non deterministic, replicate its effects instead of the script (no-op since Redis 5)
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+local rate = tonumber(ARGV[1])
+local burst = tonumber(ARGV[2])
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or burst
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000000)
+
+local taken = 0
+if tokens >= 1 then
+    tokens = tokens - 1
+    taken = 1
+end
+redis.call('hset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(now))
+-- an idle bucket is full again after burst / rate seconds, no need to keep it longer
+redis.call('pexpire', KEYS[1], math.ceil(burst * 1000 / rate) + 1000)
+return taken
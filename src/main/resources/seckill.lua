@@ -0,0 +1,22 @@
+-- seckill: one order per user, then take one from the user's home bucket of the stock
+-- every key of a bucket shares the hash tag {voucherId:bucket}, so buckets spread over the slots of a cluster
+-- KEYS[1] stock key   seckill:{voucherId:bucket}:stock
+-- KEYS[2] order key   seckill:{voucherId:bucket}:order, set of the buyers whose home is this bucket
+-- ARGV[1] user id
+-- returns 0: success, 1: the bucket is empty, the user is kept in the order set while the caller tries the other
+-- buckets, 2: already ordered, 5: not a seckill voucher
+
+local stock = tonumber(redis.call('get', KEYS[1]))
+if not stock then
+    return 5
+end
+
+if redis.call('sadd', KEYS[2], ARGV[1]) == 0 then
+    return 2
+end
+
+if stock > 0 then
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+return 1
@@ -0,0 +1,14 @@
+-- return seckill stock of cancelled orders to the buyers' home bucket and let them order again
+-- KEYS[1] stock key   seckill:{voucherId:bucket}:stock
+-- KEYS[2] order key   seckill:{voucherId:bucket}:order
+-- ARGV user ids whose home is this bucket
+-- returns the number of stock units returned
+
+local returned = 0
+for i = 1, #ARGV do
+    if redis.call('srem', KEYS[2], ARGV[i]) == 1 then
+        redis.call('incrby', KEYS[1], 1)
+        returned = returned + 1
+    end
+end
+return returned
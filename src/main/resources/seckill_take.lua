@@ -0,0 +1,10 @@
+-- take one from a bucket of the stock, for a user whose home bucket is empty
+-- KEYS[1] stock key   seckill:{voucherId:bucket}:stock
+-- returns 1 if taken, 0 if the bucket is empty
+
+local stock = tonumber(redis.call('get', KEYS[1]))
+if stock and stock > 0 then
+    redis.call('incrby', KEYS[1], -1)
+    return 1
+end
+return 0
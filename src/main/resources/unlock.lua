@@ -0,0 +1,15 @@
+-- release a reentrant lock, only by its owner
+-- KEYS[1] lock key
+-- ARGV[1] owner token
+-- ARGV[2] lease in milliseconds, renewed while the owner still holds the lock
+-- returns nil if the owner does not hold the lock, 0 if it still holds it, 1 when the lock is released
+
+if redis.call('hexists', KEYS[1], ARGV[1]) == 0 then
+    return nil
+end
+if redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0 then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 0
+end
+redis.call('del', KEYS[1])
+return 1
@@ -1,19 +1,166 @@
 package com.hmdp;
 
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisLockClient;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
-@SpringBootTest
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// the load tests below measure the seckill path itself, not the admission limit in front of it
+@SpringBootTest(properties = "hmdp.seckill.limit.local-permits-per-second=1000000")
 class HmDianPingApplicationTests {
 
     @Resource
     private ShopServiceImpl shopService;
 
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisLockClient lockClient;
+
+    private final ExecutorService es = Executors.newFixedThreadPool(500);
+
     @Test
     void testSaveShop() {
         shopService.saveShopToRedis(1L, 10L);
     }
+
+    @Test
+    void testLoadShopGeo() {
+        shopService.loadShopGeo();
+    }
+
+    @Test
+    void testIdWorker() throws InterruptedException {
+        testIdWorker(() -> redisIdWorker.nextId("order"));
+    }
+
+    @Test
+    void testSegmentIdWorker() throws InterruptedException {
+        testIdWorker(() -> redisIdWorker.nextSegmentId("order"));
+    }
+
+    private void testIdWorker(LongSupplier idSupplier) throws InterruptedException {
+        int threads = 300, idsPerThread = 100;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            try {
+                for (int i = 0; i < idsPerThread; i++) {
+                    ids.add(idSupplier.getAsLong());
+                }
+            } finally {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertEquals(threads * idsPerThread, ids.size());
+    }
+
+    @Test
+    void testRedisLock() throws InterruptedException {
+        int threads = 50, rounds = 100;
+        int[] counter = {0};
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < rounds; i++) {
+                        ILock lock = lockClient.getLock("lock:test");
+                        if (!lock.tryLock(10, TimeUnit.SECONDS)) {
+                            continue;
+                        }
+                        try {
+                            // reentrant for the owner thread
+                            ILock again = lockClient.getLock("lock:test");
+                            if (again.tryLock(0, TimeUnit.SECONDS)) {
+                                again.unlock();
+                                counter[0]++;
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(120, TimeUnit.SECONDS));
+        assertEquals(threads * rounds, counter[0]);
+        assertEquals(Boolean.FALSE, stringRedisTemplate.hasKey("lock:test"));
+
+        // a lock whose lease ran out can't be released by its former owner
+        ILock lease = lockClient.getLock("lock:test:lease");
+        assertTrue(lease.tryLock(0, 200, TimeUnit.MILLISECONDS));
+        Thread.sleep(300);
+        assertThrows(IllegalMonitorStateException.class, lease::unlock);
+
+        // locks of different keys held by different threads never block each other
+        int keys = 400;
+        CountDownLatch held = new CountDownLatch(keys);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch unlocked = new CountDownLatch(keys);
+        AtomicInteger taken = new AtomicInteger();
+        for (int k = 0; k < keys; k++) {
+            ILock lock = lockClient.getLock("lock:test:" + k);
+            es.submit(() -> {
+                boolean locked = false;
+                try {
+                    try {
+                        locked = lock.tryLock(0, TimeUnit.SECONDS);
+                        if (locked) {
+                            taken.incrementAndGet();
+                        }
+                    } finally {
+                        held.countDown();
+                    }
+                    if (locked) {
+                        release.await(60, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    try {
+                        if (locked) {
+                            lock.unlock();
+                        }
+                    } finally {
+                        unlocked.countDown();
+                    }
+                }
+                return null;
+            });
+        }
+        assertTrue(held.await(60, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(unlocked.await(60, TimeUnit.SECONDS));
+        assertEquals(keys, taken.get());
+    }
+
 }
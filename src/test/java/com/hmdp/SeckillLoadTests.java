@@ -0,0 +1,426 @@
+package com.hmdp;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.LoginFormDTO;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockKeys;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.StreamUtils;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flash sale load simulation against local stand-ins: an embedded Redis server and an in-memory H2 database
+ * in MySQL mode loaded from db/hmdp.sql, so it needs nothing installed.
+ * <p>
+ * Simulated users log in through /user/login and then all hit /voucher-order/seckill/{id} at once over HTTP.
+ * Throughput and latency percentiles are printed, and the orders written to the database are checked for
+ * oversell and for more than one order per user.
+ * <p>
+ * Run with {@code mvn test -Dtest=SeckillLoadTests -Dseckill.load=true}, sizes can be changed with
+ * -Dseckill.load.users, -Dseckill.load.stock and -Dseckill.load.threads.
+ */
+@EnabledIfSystemProperty(named = "seckill.load", matches = "true")
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.redis.host=127.0.0.1",
+        "spring.redis.password=",
+        "spring.redis.lettuce.pool.max-active=64",
+        "spring.redis.lettuce.pool.max-idle=64",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.url=" + SeckillLoadTests.H2_URL,
+        "spring.datasource.username=sa",
+        "spring.datasource.password=",
+        "spring.datasource.hikari.maximum-pool-size=32",
+        "server.tomcat.threads.max=400",
+        "hmdp.seckill.limit.local-permits-per-second=1000000",
+        "logging.level.com.hmdp=info"
+})
+class SeckillLoadTests {
+
+    static final String H2_URL = "jdbc:h2:mem:hmdp;MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+            + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1";
+
+    private static final int USERS = Integer.getInteger("seckill.load.users", 5000);
+    private static final int STOCK = Integer.getInteger("seckill.load.stock", 1000);
+    private static final int THREADS = Integer.getInteger("seckill.load.threads", 200);
+    private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static RedisServer redisServer;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private IVoucherService voucherService;
+
+    @Autowired
+    private RedisIdWorker redisIdWorker;
+
+    // runs before the application context starts, so both stand-ins are ready when it connects
+    @DynamicPropertySource
+    static void startStandIns(DynamicPropertyRegistry registry) throws IOException, SQLException {
+        int port = freePort();
+        // stopped when the JVM exits, after @DirtiesContext has closed the application using it
+        redisServer = RedisServer.newRedisServer().port(port).setting("maxmemory 256mb")
+                .onShutdownForceStop(true).build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+        try (Connection conn = DriverManager.getConnection(H2_URL, "sa", "");
+             Statement statement = conn.createStatement()) {
+            for (String sql : toH2(new String(readAll("db/hmdp.sql"), StandardCharsets.UTF_8))) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    @Test
+    void testSeckillLoad() throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<String> tokens = login(es);
+            Long voucherId = addSeckillVoucher(1);
+            long[] latencies = new long[USERS];
+            AtomicInteger success = new AtomicInteger();
+            Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(USERS);
+            for (int i = 0; i < USERS; i++) {
+                int user = i;
+                es.submit(() -> {
+                    try {
+                        start.await();
+                        long begin = System.nanoTime();
+                        Result r = post("/voucher-order/seckill/" + voucherId, null, tokens.get(user));
+                        latencies[user] = System.nanoTime() - begin;
+                        if (Boolean.TRUE.equals(r.getSuccess())) {
+                            success.incrementAndGet();
+                        } else {
+                            failures.computeIfAbsent(r.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.computeIfAbsent(e.getClass().getSimpleName(), k -> new AtomicInteger()).incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+            report(latencies, elapsed, success.get(), failures);
+
+            int orders = awaitOrders(voucherId, success.get());
+            int users = voucherOrderService.query().select("distinct user_id").eq("voucher_id", voucherId).count();
+            Integer stockLeft = seckillVoucherService.getById(voucherId).getStock();
+
+            // never oversold, every admitted order is persisted once, one order per user
+            assertTrue(success.get() <= STOCK, "oversold: " + success.get() + " > " + STOCK);
+            assertEquals(Math.min(USERS, STOCK), success.get());
+            assertEquals(success.get(), orders);
+            assertEquals(orders, users);
+            assertEquals(STOCK - orders, stockLeft.intValue());
+            assertEquals(orders, buyers(voucherId, 1));
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    // the seckill path alone, called in process for users of every home bucket, one voucher per bucket count
+    @Test
+    void testSeckillStockBuckets() throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        try {
+            // the first round only warms up
+            int[] rounds = {8, 1, 2, 4, 8};
+            for (int round = 0; round < rounds.length; round++) {
+                int buckets = rounds[round];
+                Long voucherId = addSeckillVoucher(buckets);
+                AtomicInteger success = new AtomicInteger();
+                CountDownLatch done = new CountDownLatch(USERS);
+                long begin = System.nanoTime();
+                for (int i = 0; i < USERS; i++) {
+                    long userId = 1_000_000L + i;
+                    es.submit(() -> {
+                        UserDTO user = new UserDTO();
+                        user.setId(userId);
+                        UserHolder.saveUser(user);
+                        try {
+                            if (voucherOrderService.seckillVoucher(voucherId).getSuccess()) {
+                                success.incrementAndGet();
+                            }
+                        } finally {
+                            UserHolder.removeUser();
+                            done.countDown();
+                        }
+                    });
+                }
+                done.await();
+                long elapsed = System.nanoTime() - begin;
+                if (round > 0) {
+                    System.out.printf("%d buckets: %d requests in %d ms, %.0f requests/s%n", buckets, USERS,
+                            elapsed / 1_000_000, USERS * 1e9 / elapsed);
+                }
+                // sold out exactly, never oversold
+                assertEquals(Math.min(USERS, STOCK), success.get());
+                assertEquals(success.get(), buyers(voucherId, buckets));
+                assertEquals(success.get(), awaitOrders(voucherId, success.get()));
+            }
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void testVoucherOrderBatchSizes() {
+        int orders = 2000;
+        int[] batchSizes = {1, 10, 50, 100, 200, 500};
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L).setTitle("batch load test").setPayValue(100L).setActualValue(1000L).setType(1)
+                .setStock(orders * batchSizes.length)
+                .setBeginTime(LocalDateTime.now().minusMinutes(1)).setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+
+        long userId = 2_000_000L;
+        for (int batchSize : batchSizes) {
+            List<VoucherOrder> all = new ArrayList<>(orders);
+            for (int i = 0; i < orders; i++) {
+                all.add(new VoucherOrder().setId(redisIdWorker.nextSegmentId("order"))
+                        .setUserId(userId++).setVoucherId(voucher.getId()));
+            }
+            long begin = System.nanoTime();
+            for (int from = 0; from < orders; from += batchSize) {
+                voucherOrderService.createVoucherOrders(all.subList(from, Math.min(from + batchSize, orders)));
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("batch size %d: %d orders in %d ms, %.0f orders/s%n", batchSize, orders,
+                    elapsed / 1_000_000, orders * 1e9 / elapsed);
+            // redelivering the same orders inserts nothing and takes no stock
+            voucherOrderService.createVoucherOrders(all);
+        }
+        int count = voucherOrderService.query().eq("voucher_id", voucher.getId()).count();
+        assertEquals(orders * batchSizes.length, count);
+
+        // an invalid order fails the whole batch instead of being dropped, the handler retries it alone
+        List<VoucherOrder> invalid = Arrays.asList(
+                new VoucherOrder().setId(redisIdWorker.nextSegmentId("order")).setUserId(userId).setVoucherId(voucher.getId()),
+                new VoucherOrder().setId(redisIdWorker.nextSegmentId("order")).setVoucherId(voucher.getId()));
+        assertThrows(DataIntegrityViolationException.class, () -> voucherOrderService.createVoucherOrders(invalid));
+        assertEquals(count, voucherOrderService.query().eq("voucher_id", voucher.getId()).count());
+    }
+
+    private List<String> login(ExecutorService es) throws InterruptedException {
+        String[] tokens = new String[USERS];
+        CountDownLatch done = new CountDownLatch(USERS);
+        for (int i = 0; i < USERS; i++) {
+            int user = i;
+            es.submit(() -> {
+                try {
+                    LoginFormDTO form = new LoginFormDTO();
+                    form.setPhone(String.format("138%08d", user));
+                    tokens[user] = (String) post("/user/login", form, null).getData();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        List<String> list = Arrays.asList(tokens);
+        assertTrue(list.stream().allMatch(t -> t != null && !t.isEmpty()), "login failed");
+        return list;
+    }
+
+    private Long addSeckillVoucher(int buckets) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L).setTitle("seckill load test").setPayValue(100L).setActualValue(1000L).setType(1)
+                .setStock(STOCK).setStockBuckets(buckets)
+                .setBeginTime(LocalDateTime.now().minusMinutes(1)).setEndTime(LocalDateTime.now().plusHours(1));
+        // stockBuckets is only read from the JSON of a voucher, never written, so it goes as a map
+        Result r = post("/voucher/seckill", BeanUtil.beanToMap(voucher), null);
+        assertTrue(r.getSuccess(), r.getErrorMsg());
+        return ((Number) r.getData()).longValue();
+    }
+
+    // orders are written by the stream consumer, wait until it has caught up
+    private int awaitOrders(Long voucherId, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        long begin = System.nanoTime();
+        int count;
+        while ((count = voucherOrderService.query().eq("voucher_id", voucherId).count()) < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        System.out.printf("%d orders persisted %d ms after the last response%n",
+                count, (System.nanoTime() - begin) / 1_000_000);
+        return count;
+    }
+
+    private int buyers(Long voucherId, int buckets) {
+        int buyers = 0;
+        for (int i = 0; i < buckets; i++) {
+            buyers += stringRedisTemplate.opsForSet().size(SeckillStockKeys.orderKey(voucherId, i)).intValue();
+        }
+        return buyers;
+    }
+
+    private Result post(String path, Object body, String token) {
+        HttpHeaders headers = new HttpHeaders();
+        if (token != null) {
+            headers.set("authorization", token);
+        }
+        return restTemplate.exchange(path, HttpMethod.POST, new HttpEntity<>(body, headers), Result.class).getBody();
+    }
+
+    private static void report(long[] latencies, long elapsed, int success, Map<String, AtomicInteger> failures) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%d users, %d stock, %d client threads: %d requests in %d ms, %.0f requests/s%n",
+                USERS, STOCK, THREADS, sorted.length, elapsed / 1_000_000, sorted.length * 1e9 / elapsed);
+        System.out.printf("latency ms p50 %.1f, p90 %.1f, p99 %.1f, p999 %.1f, max %.1f%n",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                percentile(sorted, 99.9), sorted[sorted.length - 1] / 1e6);
+        System.out.printf("%d succeeded, failed %s%n", success, failures);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static byte[] readAll(String path) throws IOException {
+        return StreamUtils.copyToByteArray(new ClassPathResource(path).getInputStream());
+    }
+
+    private static final Pattern TABLE = Pattern.compile("CREATE TABLE `(\\w+)`");
+    private static final Pattern INLINE_INDEX = Pattern.compile("^\\s*(UNIQUE )?INDEX `(\\w+)`\\((.*?)\\)[^,]*,?$");
+    private static final Pattern AUTO_INCREMENT = Pattern.compile("^\\s*(`\\w+`) .*AUTO_INCREMENT");
+    private static final Pattern TABLE_OPTIONS = Pattern.compile("^\\)\\s*ENGINE");
+    private static final Pattern AUTO_INCREMENT_OPTION = Pattern.compile("AUTO_INCREMENT = (\\d+)");
+
+    /**
+     * Translate the Navicat MySQL dump into statements H2 accepts in MySQL mode: table options, charsets and
+     * index methods are dropped, inline indexes become CREATE INDEX, AUTO_INCREMENT offsets become RESTART WITH.
+     */
+    private static List<String> toH2(String dump) {
+        List<String> statements = new ArrayList<>();
+        List<String> after = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        String table = null;
+        String idColumn = null;
+        for (String line : dump.split("\n")) {
+            String l = line.replace("\r", "");
+            if (current.length() == 0 && (l.isEmpty() || l.startsWith("--") || l.startsWith("SET ")
+                    || l.startsWith("/*") || l.startsWith(" ") && table == null || l.startsWith("*/"))) {
+                continue;
+            }
+            Matcher m = TABLE.matcher(l);
+            if (m.find()) {
+                table = m.group(1);
+                idColumn = null;
+            }
+            if (table != null) {
+                if ((m = INLINE_INDEX.matcher(l)).matches()) {
+                    after.add("CREATE " + (m.group(1) == null ? "" : "UNIQUE ") + "INDEX `" + table + "_" + m.group(2)
+                            + "` ON `" + table + "`(" + m.group(3) + ")");
+                    continue;
+                }
+                if ((m = AUTO_INCREMENT.matcher(l)).find()) {
+                    idColumn = m.group(1);
+                }
+                if (TABLE_OPTIONS.matcher(l).find()) {
+                    if ((m = AUTO_INCREMENT_OPTION.matcher(l)).find() && idColumn != null) {
+                        after.add("ALTER TABLE `" + table + "` ALTER COLUMN " + idColumn + " RESTART WITH " + m.group(1));
+                    }
+                    // the line before may end with a comma left by a removed index
+                    String body = current.toString().replaceAll(",\\s*$", "\n");
+                    current.setLength(0);
+                    current.append(body).append(")");
+                    statements.add(clean(current.toString()));
+                    current.setLength(0);
+                    statements.addAll(after);
+                    after.clear();
+                    table = null;
+                    continue;
+                }
+                current.append(l).append("\n");
+                continue;
+            }
+            current.append(l).append("\n");
+            if (l.endsWith(";")) {
+                statements.add(clean(current.toString().trim().replaceAll(";$", "")));
+                current.setLength(0);
+            }
+        }
+        return statements;
+    }
+
+    private static String clean(String sql) {
+        return sql.replaceAll("CHARACTER SET \\w+ COLLATE \\w+", "")
+                .replaceAll(" USING BTREE", "")
+                .replaceAll("(?i)\\b(tinyint|smallint|int|bigint)\\(\\d+\\)", "$1")
+                .replaceAll(" UNSIGNED| ZEROFILL", "")
+                .replace("\\'", "''");
+    }
+}
@@ -0,0 +1,267 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.ShopCatalog;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopSuggestIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Benchmarks of the in-memory shop indexes at 100k to 1M shops, each on a standalone instance.
+ * <p>
+ * Run with {@code mvn test -Dtest=ShopIndexBenchmarkTests -Dshop.bench=true}, the nearby benchmark also writes
+ * 1.1M GEO members to Redis and deletes them when done.
+ */
+@EnabledIfSystemProperty(named = "shop.bench", matches = "true")
+@SpringBootTest
+class ShopIndexBenchmarkTests {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testShopGeoIndexVsRedis() {
+        testShopGeoIndexVsRedis(100_000);
+        testShopGeoIndexVsRedis(1_000_000);
+    }
+
+    private void testShopGeoIndexVsRedis(int shops) {
+        // a standalone index, random shops around Hangzhou in a type of their own
+        ShopGeoIndex shopGeoIndex = new ShopGeoIndex(stringRedisTemplate, null);
+        long typeId = 1_000_000L + shops;
+        String key = SHOP_GEO_KEY + typeId;
+        stringRedisTemplate.delete(key);
+        Random random = new Random(42);
+        for (int from = 0; from < shops; from += 10_000) {
+            Map<String, Point> points = new HashMap<>();
+            for (long id = from + 1; id <= Math.min(from + 10_000, shops); id++) {
+                double x = 119.8 + random.nextDouble() * 0.6, y = 30.0 + random.nextDouble() * 0.5;
+                shopGeoIndex.put(id, typeId, x, y);
+                points.put(String.valueOf(id), new Point(x, y));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                ((StringRedisConnection) connection).geoAdd(key, points);
+                return null;
+            });
+        }
+
+        int queries = 2000, k = 10;
+        double[][] at = new double[queries][];
+        for (int i = 0; i < queries; i++) {
+            at[i] = new double[]{119.8 + random.nextDouble() * 0.6, 30.0 + random.nextDouble() * 0.5};
+        }
+        ShopGeoIndex.Hits[] local = new ShopGeoIndex.Hits[queries];
+        // warm up the JIT first
+        for (int i = 0; i < queries; i++) {
+            shopGeoIndex.nearest(typeId, at[i][0], at[i][1], 5000, k);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            local[i] = shopGeoIndex.nearest(typeId, at[i][0], at[i][1], 5000, k);
+        }
+        long localNanos = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(key,
+                    new Circle(new Point(at[i][0], at[i][1]), new Distance(5000, RedisGeoCommands.DistanceUnit.METERS)),
+                    RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(k));
+            List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
+            // Redis keeps 52 bit geohashes, so distances agree to well under a meter
+            assertEquals(content.size(), local[i].size());
+            assertEquals(content.get(k - 1).getDistance().getValue(), local[i].distance(k - 1), 1.0);
+        }
+        long redisNanos = System.nanoTime() - begin;
+        System.out.printf("%d shops, %d queries of %d nearest: local %.1f us/query, GEORADIUS %.1f us/query%n",
+                shops, queries, k, localNanos / 1000.0 / queries, redisNanos / 1000.0 / queries);
+
+        stringRedisTemplate.delete(key);
+    }
+
+    @Test
+    void testShopNameIndex() {
+        testShopNameIndex(100_000);
+        testShopNameIndex(1_000_000);
+    }
+
+    private void testShopNameIndex(int shops) {
+        // random names from common chars of shop names, a standalone index not listening to changes
+        String chars = "新白鹿餐厅茶火锅烤肉串香辣小龙虾牛羊汤面馆饺子包点心甜品咖啡奶茶寿司日料韩式西式披萨汉堡"
+                + "老北京杭州上海四川湖南广东潮汕海鲜大排档酒吧烧烤麻辣烫粥铺水果花店美发健身足疗按摩酒店宾馆";
+        String[] suffixes = {"", "(西湖店)", "(运河上街店)", "(滨江店)", "·总店", " Coffee", " 2号店"};
+        ShopNameIndex index = new ShopNameIndex(stringRedisTemplate, null);
+        Random random = new Random(42);
+        String[] names = new String[shops];
+        for (int i = 0; i < shops; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int len = 3 + random.nextInt(6); len > 0; len--) {
+                name.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            names[i] = name.append(suffixes[random.nextInt(suffixes.length)]).toString();
+            index.put(i + 1, names[i], 10 + random.nextInt(41), random.nextInt(20000));
+        }
+        System.out.printf("%d shops, name index %s%n", shops, index.stats());
+
+        // keywords of 1 to 3 chars cut from the names, like a user typing
+        int queries = 2000;
+        String[] keywords = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            do {
+                String name = names[random.nextInt(shops)];
+                int len = 1 + random.nextInt(3), from = random.nextInt(name.length() - len + 1);
+                keywords[i] = name.substring(from, from + len);
+            } while (!keywords[i].matches(".*[\\p{L}\\p{N}].*"));
+        }
+        for (String keyword : keywords) {
+            index.search(keyword, 0, 10);
+        }
+        long begin = System.nanoTime();
+        for (String keyword : keywords) {
+            assertTrue(index.search(keyword, 0, 10).getIds().size() > 0);
+        }
+        long indexNanos = System.nanoTime() - begin;
+
+        // the scan LIKE '%name%' does, without the database
+        begin = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            int matched = 0;
+            for (String name : names) {
+                if (name.contains(keywords[i])) {
+                    matched++;
+                }
+            }
+            assertTrue(matched > 0);
+        }
+        long scanNanos = System.nanoTime() - begin;
+        System.out.printf("%d shops, %d queries: index %.1f us/query, scan %.1f us/query%n",
+                shops, queries, indexNanos / 1000.0 / queries, scanNanos / 1000.0 / 200);
+    }
+
+    @Test
+    void testShopSuggestIndex() {
+        int shops = 1_000_000;
+        String chars = "新白鹿餐厅茶火锅烤肉串香辣小龙虾牛羊汤面馆饺子包点心甜品咖啡奶茶寿司日料韩式西式披萨汉堡";
+        ShopSuggestIndex index = new ShopSuggestIndex(null);
+        Random random = new Random(42);
+        String[] names = new String[shops];
+        int[] scores = new int[shops], solds = new int[shops];
+        for (int i = 0; i < shops; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int len = 3 + random.nextInt(6); len > 0; len--) {
+                name.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            names[i] = name.toString();
+            scores[i] = 10 + random.nextInt(41);
+            solds[i] = random.nextInt(20000);
+            index.put(i + 1, names[i], scores[i], solds[i]);
+        }
+        long begin = System.nanoTime();
+        index.rebuild();
+        System.out.printf("%d shops, suggest trie built in %d ms%n", shops,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+
+        int queries = 10_000;
+        String[] prefixes = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            prefixes[i] = names[random.nextInt(shops)].substring(0, 1 + random.nextInt(3));
+        }
+        begin = System.nanoTime();
+        for (String prefix : prefixes) {
+            index.suggest(prefix, 10);
+        }
+        System.out.printf("%d queries: %.2f us/query%n", queries, (System.nanoTime() - begin) / 1000.0 / queries);
+
+        // the same as sorting all matches by score, sold and id
+        for (int q = 0; q < 20; q++) {
+            String prefix = prefixes[q];
+            List<Integer> matches = new ArrayList<>();
+            for (int i = 0; i < shops; i++) {
+                if (names[i].startsWith(prefix)) {
+                    matches.add(i);
+                }
+            }
+            matches.sort((a, b) -> scores[a] != scores[b] ? scores[b] - scores[a]
+                    : solds[a] != solds[b] ? solds[b] - solds[a] : a - b);
+            List<Shop> suggestions = index.suggest(prefix, 10);
+            assertEquals(Math.min(10, matches.size()), suggestions.size());
+            for (int i = 0; i < suggestions.size(); i++) {
+                assertEquals(matches.get(i) + 1L, suggestions.get(i).getId());
+            }
+        }
+    }
+
+    @Test
+    void testShopCatalog() {
+        int shops = 1_000_000, types = 10;
+        String[] areas = {"大关", "拱宸桥/上塘", "运河上街", "北京路商业区", "远洋乐堤港", "西湖", "滨江", "武林广场"};
+        ShopCatalog catalog = new ShopCatalog(stringRedisTemplate);
+        Random random = new Random(42);
+        Shop[] all = new Shop[shops];
+        for (int i = 0; i < shops; i++) {
+            all[i] = new Shop().setId(i + 1L).setTypeId(1L + random.nextInt(types))
+                    .setArea(areas[random.nextInt(areas.length)]).setAvgPrice(20L + random.nextInt(400))
+                    .setScore(10 + random.nextInt(41)).setSold(random.nextInt(20000)).setComments(random.nextInt(5000));
+            catalog.put(all[i]);
+        }
+        catalog.sort();
+
+        int queries = 2000;
+        String[] sorts = {ShopCatalog.SORT_BY_SCORE, ShopCatalog.SORT_BY_SOLD, ShopCatalog.SORT_BY_COMMENTS};
+        Object[][] params = new Object[queries][];
+        for (int i = 0; i < queries; i++) {
+            long min = 20L + random.nextInt(300);
+            params[i] = new Object[]{1L + random.nextInt(types), random.nextBoolean() ? areas[random.nextInt(areas.length)] : null,
+                    min, min + 100, sorts[random.nextInt(sorts.length)]};
+        }
+        for (Object[] p : params) {
+            catalog.query((Long) p[0], (String) p[1], (Long) p[2], (Long) p[3], (String) p[4], 0, 10);
+        }
+        long begin = System.nanoTime();
+        for (Object[] p : params) {
+            catalog.query((Long) p[0], (String) p[1], (Long) p[2], (Long) p[3], (String) p[4], 0, 10);
+        }
+        System.out.printf("%d shops, %d filter+sort queries: %.1f us/query%n",
+                shops, queries, (System.nanoTime() - begin) / 1000.0 / queries);
+
+        // the same as filtering and sorting all shops
+        for (int q = 0; q < 10; q++) {
+            Object[] p = params[q];
+            ToIntFunction<Shop> sort = ShopCatalog.SORT_BY_SOLD.equals(p[4]) ? Shop::getSold
+                    : ShopCatalog.SORT_BY_COMMENTS.equals(p[4]) ? Shop::getComments : Shop::getScore;
+            List<Long> expected = Arrays.stream(all)
+                    .filter(shop -> shop.getTypeId().equals(p[0]) && (p[1] == null || shop.getArea().equals(p[1]))
+                            && shop.getAvgPrice() >= (Long) p[2] && shop.getAvgPrice() <= (Long) p[3])
+                    .sorted((a, b) -> sort.applyAsInt(a) != sort.applyAsInt(b)
+                            ? sort.applyAsInt(b) - sort.applyAsInt(a) : Long.compare(a.getId(), b.getId()))
+                    .skip(10).limit(10).map(Shop::getId).collect(Collectors.toList());
+            assertEquals(expected, catalog.query((Long) p[0], (String) p[1], (Long) p[2], (Long) p[3], (String) p[4], 10, 10));
+        }
+    }
+}
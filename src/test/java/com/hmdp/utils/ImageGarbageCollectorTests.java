@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ImageGcReport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageGarbageCollectorTests {
+
+    private static final String USED = "/blogs/1/0/" + hash('a') + ".jpg";
+    private static final String ABANDONED = "/blogs/2/0/" + hash('b') + ".png";
+    private static final String FRESH = "/blogs/3/0/" + hash('c') + ".jpg";
+
+    @TempDir
+    Path dir;
+
+    private ImageStore imageStore;
+    private ImageGarbageCollector collector;
+
+    @BeforeEach
+    void setUp() {
+        // dry runs only, nothing here touches Redis
+        imageStore = new ImageStore(null);
+        ReflectionTestUtils.setField(imageStore, "uploadDir", dir.toString());
+        ReflectionTestUtils.invokeMethod(imageStore, "init");
+        collector = new ImageGarbageCollector(imageStore);
+        ReflectionTestUtils.setField(collector, "graceHours", 24L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(collector, "destroy");
+    }
+
+    @Test
+    void testFingerprint() {
+        long image = ImageGarbageCollector.fingerprint(USED);
+        assertEquals(image, ImageGarbageCollector.fingerprint("/imgs" + USED));
+        assertEquals(image, ImageGarbageCollector.fingerprint("https://cdn.example.com/imgs" + USED));
+        assertEquals(image, ImageGarbageCollector.fingerprint(ImageStore.variantName(USED, 240)));
+        assertNotEquals(image, ImageGarbageCollector.fingerprint(ABANDONED));
+        assertNotEquals(image, ImageGarbageCollector.fingerprint(USED.replace("/1/0/", "/1/1/")));
+    }
+
+    @Test
+    void testOrphans() throws IOException, InterruptedException {
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+        for (String name : Arrays.asList(USED, ImageStore.variantName(USED, 240), ABANDONED,
+                ImageStore.variantName(ABANDONED, 480), "/tmp/upload-1.part")) {
+            Files.setLastModifiedTime(write(name), old);
+        }
+        // within the grace period
+        write(FRESH);
+
+        ImageGcReport report = collector.collect(images -> images.accept("/imgs" + USED), true);
+        assertEquals(6, report.getScannedFiles());
+        assertEquals(1, report.getReferencedImages());
+        assertEquals(3, report.getOrphanFiles());
+        assertEquals(30, report.getOrphanBytes());
+        assertEquals(new HashSet<>(Arrays.asList(ABANDONED, ImageStore.variantName(ABANDONED, 480), "/tmp/upload-1.part")),
+                new HashSet<>(report.getSample()));
+        // a dry run deletes nothing
+        assertEquals(0, report.getDeletedFiles());
+        assertTrue(Files.exists(imageStore.resolve(ABANDONED)));
+        assertEquals(report, collector.lastReport());
+
+        // referenced twice, through a variant too
+        ImageGcReport referenced = collector.collect(images -> {
+            images.accept("/imgs" + USED);
+            images.accept("/imgs" + ImageStore.variantName(ABANDONED, 240));
+            images.accept("/imgs" + USED);
+        }, true);
+        assertEquals(2, referenced.getReferencedImages());
+        assertEquals(1, referenced.getOrphanFiles());
+
+        ImageGcReport unreferenced = collector.collect(images -> { }, true);
+        assertEquals(5, unreferenced.getOrphanFiles());
+    }
+
+    private Path write(String name) throws IOException {
+        Path file = dir.resolve(name.substring(1));
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[10]);
+        return file;
+    }
+
+    private static String hash(char c) {
+        char[] hash = new char[64];
+        Arrays.fill(hash, c);
+        return new String(hash);
+    }
+}
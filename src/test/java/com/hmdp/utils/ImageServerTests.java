@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageServerTests {
+
+    private static final String HASH = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    Path dir;
+
+    private ImageStore imageStore;
+    private ImageServer imageServer;
+
+    @BeforeEach
+    void setUp() {
+        // nothing here touches Redis
+        imageStore = new ImageStore(null);
+        ReflectionTestUtils.setField(imageStore, "uploadDir", dir.toString());
+        ReflectionTestUtils.invokeMethod(imageStore, "init");
+        imageServer = new ImageServer(imageStore);
+    }
+
+    @Test
+    void testServe() throws IOException {
+        byte[] image = write("/blogs/1/0/" + HASH + ".jpg", 100 * 1024);
+        MockHttpServletResponse full = serve("/blogs/1/0/" + HASH + ".jpg", "GET");
+        assertEquals(200, full.getStatus());
+        assertEquals("image/jpeg", full.getContentType());
+        assertEquals("nosniff", full.getHeader("X-Content-Type-Options"));
+        assertEquals("\"" + HASH + "\"", full.getHeader("ETag"));
+        assertEquals("public, max-age=31536000, immutable", full.getHeader("Cache-Control"));
+        assertArrayEquals(image, full.getContentAsByteArray());
+
+        MockHttpServletResponse head = serve("/blogs/1/0/" + HASH + ".jpg", "HEAD");
+        assertEquals(image.length, head.getContentLengthLong());
+        assertEquals(0, head.getContentAsByteArray().length);
+    }
+
+    @Test
+    void testNotModified() throws IOException {
+        write("/blogs/1/0/" + HASH + ".png", 1024);
+        MockHttpServletRequest conditional = request("/blogs/1/0/" + HASH + ".png", "GET");
+        conditional.addHeader("If-None-Match", "\"other\", W/\"" + HASH + "\"");
+        MockHttpServletResponse notModified = new MockHttpServletResponse();
+        imageServer.serve("/blogs/1/0/" + HASH + ".png", conditional, notModified);
+        assertEquals(304, notModified.getStatus());
+        assertEquals(0, notModified.getContentAsByteArray().length);
+
+        // files not named by their hash get a weak tag of size and modification time
+        write("/blogs/logo.png", 1024);
+        String etag = serve("/blogs/logo.png", "GET").getHeader("ETag");
+        assertTrue(etag.startsWith("W/\"1024-"));
+        conditional = request("/blogs/logo.png", "GET");
+        conditional.addHeader("If-None-Match", etag);
+        notModified = new MockHttpServletResponse();
+        imageServer.serve("/blogs/logo.png", conditional, notModified);
+        assertEquals(304, notModified.getStatus());
+    }
+
+    @Test
+    void testRange() throws IOException {
+        // one large file streamed from disk, one small file served from the cache
+        String[] names = {"/blogs/1/0/" + HASH + ".jpg", "/blogs/2/0/" + HASH.replace('0', 'f') + ".jpg"};
+        int[] sizes = {100 * 1024, 8 * 1024};
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            int size = sizes[i];
+            byte[] image = write(name, size);
+
+            MockHttpServletResponse partial = serve(name, "GET", "Range", "bytes=1000-1999");
+            assertEquals(206, partial.getStatus());
+            assertEquals("bytes 1000-1999/" + size, partial.getHeader("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(image, 1000, 2000), partial.getContentAsByteArray());
+
+            MockHttpServletResponse suffix = serve(name, "GET", "Range", "bytes=-100");
+            assertEquals(206, suffix.getStatus());
+            assertArrayEquals(Arrays.copyOfRange(image, size - 100, size), suffix.getContentAsByteArray());
+
+            MockHttpServletResponse open = serve(name, "GET", "Range", "bytes=100-");
+            assertEquals("bytes 100-" + (size - 1) + "/" + size, open.getHeader("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(image, 100, size), open.getContentAsByteArray());
+
+            MockHttpServletResponse unsatisfiable = serve(name, "GET", "Range", "bytes=" + size + "-");
+            assertEquals(416, unsatisfiable.getStatus());
+            assertEquals("bytes */" + size, unsatisfiable.getHeader("Content-Range"));
+
+            // an invalid range is ignored
+            MockHttpServletResponse invalid = serve(name, "GET", "Range", "bytes=5-3");
+            assertEquals(200, invalid.getStatus());
+            assertArrayEquals(image, invalid.getContentAsByteArray());
+
+            // several ranges get the whole file
+            MockHttpServletResponse several = serve(name, "GET", "Range", "bytes=0-1,5-6");
+            assertEquals(200, several.getStatus());
+            assertArrayEquals(image, several.getContentAsByteArray());
+        }
+    }
+
+    @Test
+    void testIfRange() throws IOException {
+        String name = "/blogs/1/0/" + HASH + ".jpg";
+        byte[] image = write(name, 4096);
+        MockHttpServletRequest current = request(name, "GET");
+        current.addHeader("Range", "bytes=0-9");
+        current.addHeader("If-Range", "\"" + HASH + "\"");
+        MockHttpServletResponse partial = new MockHttpServletResponse();
+        imageServer.serve(name, current, partial);
+        assertEquals(206, partial.getStatus());
+
+        MockHttpServletRequest stale = request(name, "GET");
+        stale.addHeader("Range", "bytes=0-9");
+        stale.addHeader("If-Range", "\"other\"");
+        MockHttpServletResponse full = new MockHttpServletResponse();
+        imageServer.serve(name, stale, full);
+        assertEquals(200, full.getStatus());
+        assertArrayEquals(image, full.getContentAsByteArray());
+    }
+
+    @Test
+    void testNotFound() throws IOException {
+        assertEquals(404, serve("/blogs/1/0/" + HASH + ".jpg", "GET").getStatus());
+        assertEquals(404, serve("/../pom.xml", "GET").getStatus());
+        assertEquals(404, serve("/blogs", "GET").getStatus());
+    }
+
+    @Test
+    void testNotImage() throws IOException {
+        write("/blogs/test.html", 100);
+        write("/blogs/test.svg", 100);
+        for (String name : new String[]{"/blogs/test.html", "/blogs/test.svg"}) {
+            MockHttpServletResponse download = serve(name, "GET");
+            assertEquals(200, download.getStatus());
+            assertEquals("application/octet-stream", download.getContentType());
+            assertEquals("attachment", download.getHeader("Content-Disposition"));
+            assertEquals("nosniff", download.getHeader("X-Content-Type-Options"));
+        }
+    }
+
+    private byte[] write(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Path file = imageStore.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        return content;
+    }
+
+    private MockHttpServletRequest request(String name, String method) {
+        return new MockHttpServletRequest(method, "/imgs" + name);
+    }
+
+    private MockHttpServletResponse serve(String name, String method, String... headers) throws IOException {
+        MockHttpServletRequest request = request(name, method);
+        for (int i = 0; i < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        imageServer.serve(name, request, response);
+        return response;
+    }
+}
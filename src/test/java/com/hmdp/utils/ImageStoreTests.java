@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ImageDTO;
+import com.hmdp.dto.ImageGcReport;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.embedded.RedisServer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.hmdp.utils.RedisConstants.IMAGE_REFS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The reference counts and variant status live in Redis, an embedded server stands in for it.
+ */
+class ImageStoreTests {
+
+    private static RedisServer redisServer;
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate stringRedisTemplate;
+
+    @TempDir
+    Path dir;
+
+    private ImageStore imageStore;
+    private final Random random = new Random();
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer().port(port).setting("maxmemory 64mb")
+                .onShutdownForceStop(true).build();
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", port);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        imageStore = new ImageStore(stringRedisTemplate);
+        ReflectionTestUtils.setField(imageStore, "uploadDir", dir.toString());
+        ReflectionTestUtils.setField(imageStore, "maxSize", 1024L * 1024);
+        ReflectionTestUtils.invokeMethod(imageStore, "init");
+    }
+
+    @Test
+    void testSaveAndRelease() throws IOException {
+        byte[] image = randomBytes(300 * 1024);
+        String name = imageStore.save(new ByteArrayInputStream(image), "a.JPG");
+        assertTrue(name.matches("/blogs/\\d+/\\d+/[0-9a-f]{64}\\.jpg"));
+        // the same content is stored once
+        assertEquals(name, imageStore.save(new ByteArrayInputStream(image), "b.jpg"));
+        assertEquals("2", stringRedisTemplate.opsForHash().get(IMAGE_REFS_KEY, name));
+        Path file = imageStore.resolve(name);
+        assertTrue(Files.exists(file));
+        try (Stream<Path> parts = Files.list(dir.resolve("tmp"))) {
+            assertEquals(0, parts.count());
+        }
+
+        assertTrue(imageStore.release(name));
+        assertTrue(Files.exists(file));
+        assertTrue(imageStore.release(name));
+        assertTrue(Files.notExists(file));
+        assertNull(stringRedisTemplate.opsForHash().get(IMAGE_REFS_KEY, name));
+        assertFalse(imageStore.release("/../pom.xml"));
+    }
+
+    @Test
+    void testRejected() {
+        byte[] image = randomBytes(1024);
+        byte[] large = new byte[(int) imageStore.maxSize() + 1];
+        assertThrows(IllegalArgumentException.class, () -> imageStore.save(new ByteArrayInputStream(large), "c.png"));
+        assertThrows(IllegalArgumentException.class, () -> imageStore.save(new ByteArrayInputStream(image), "d"));
+        assertThrows(IllegalArgumentException.class, () -> imageStore.save(new ByteArrayInputStream(image), "e.html"));
+        assertThrows(IllegalArgumentException.class, () -> imageStore.save(new ByteArrayInputStream(image), "f.svg"));
+        assertNull(imageStore.resolve("/../application.yaml"));
+        assertNull(imageStore.resolve("/tmp/upload-1.part"));
+        assertNull(imageStore.resolve(""));
+    }
+
+    @Test
+    void testTouch() throws IOException {
+        String name = imageStore.save(new ByteArrayInputStream(randomBytes(1024)), "a.jpg");
+        Path file = imageStore.resolve(name);
+        // a blog using it moves the modification time up, the garbage collector keeps it
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+        assertTrue(imageStore.touch("/imgs" + name));
+        assertTrue(Files.getLastModifiedTime(file).toMillis() > System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+        imageStore.release(name);
+        assertFalse(imageStore.touch(name));
+        // not an uploaded image
+        assertTrue(imageStore.touch("https://example.com/a.jpg"));
+    }
+
+    @Test
+    void testCollect() throws IOException, InterruptedException {
+        String used = imageStore.save(new ByteArrayInputStream(randomBytes(1024)), "a.jpg");
+        String abandoned = imageStore.save(new ByteArrayInputStream(randomBytes(1024)), "b.jpg");
+        String variant = ImageStore.variantName(abandoned, 240);
+        Files.write(imageStore.resolve(variant), new byte[10]);
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+        for (String name : new String[]{used, abandoned, variant}) {
+            Files.setLastModifiedTime(imageStore.resolve(name), old);
+        }
+
+        ImageGarbageCollector collector = new ImageGarbageCollector(imageStore);
+        ReflectionTestUtils.setField(collector, "graceHours", 24L);
+        ReflectionTestUtils.setField(collector, "deletesPerSecond", 1000.0);
+        try {
+            ImageGcReport report = collector.collect(images -> images.accept("/imgs" + used), false);
+            assertEquals(2, report.getOrphanFiles());
+            assertEquals(2, report.getDeletedFiles());
+            assertEquals(1034, report.getDeletedBytes());
+        } finally {
+            ReflectionTestUtils.invokeMethod(collector, "destroy");
+        }
+        assertTrue(Files.exists(imageStore.resolve(used)));
+        assertTrue(Files.notExists(imageStore.resolve(abandoned)));
+        assertTrue(Files.notExists(imageStore.resolve(variant)));
+        assertNull(stringRedisTemplate.opsForHash().get(IMAGE_REFS_KEY, abandoned));
+
+        // stored again after the walk, so not an orphan any more
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        byte[] again = randomBytes(1024);
+        String name = imageStore.save(new ByteArrayInputStream(again), "c.jpg");
+        Files.setLastModifiedTime(imageStore.resolve(name), old);
+        imageStore.save(new ByteArrayInputStream(again), "c.jpg");
+        assertEquals(-1, imageStore.deleteIfOlderThan(name, cutoff));
+        Files.setLastModifiedTime(imageStore.resolve(name), old);
+        assertEquals(again.length, imageStore.deleteIfOlderThan(name, cutoff));
+        assertEquals(-1, imageStore.deleteIfOlderThan(name, cutoff));
+    }
+
+    @Test
+    void testVariants() throws IOException, InterruptedException {
+        BufferedImage image = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.ORANGE);
+        g.fillOval(200, 100, 1200, 1000);
+        g.dispose();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        String name = imageStore.save(new ByteArrayInputStream(png.toByteArray()), "photo.png");
+
+        ImageVariantGenerator generator = new ImageVariantGenerator(imageStore, stringRedisTemplate);
+        // less than one decoded image, so the variants are made one image at a time
+        ReflectionTestUtils.setField(generator, "memoryBudget", 4L * 1024 * 1024);
+        ReflectionTestUtils.invokeMethod(generator, "init");
+        try {
+            ImageDTO submitted = generator.submit(name);
+            assertEquals(ImageVariantGenerator.PENDING, submitted.getStatus());
+            for (int i = 0; i < 100 && ImageVariantGenerator.PENDING.equals(generator.status(name)); i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(ImageVariantGenerator.DONE, generator.status(name));
+            // uploaded again, the variants are there already
+            assertEquals(ImageVariantGenerator.DONE, generator.submit(name).getStatus());
+            Map<Integer, String> variants = submitted.getVariants();
+            for (Map.Entry<Integer, String> variant : variants.entrySet()) {
+                BufferedImage scaled = ImageIO.read(imageStore.resolve(variant.getValue()).toFile());
+                assertEquals((int) variant.getKey(), scaled.getWidth());
+                assertEquals(variant.getKey() * 3 / 4, scaled.getHeight());
+            }
+            imageStore.release(name);
+            assertTrue(variants.values().stream().noneMatch(v -> Files.exists(imageStore.resolve(v))));
+
+            // not an image after all
+            String text = imageStore.save(new ByteArrayInputStream(randomBytes(1024)), "text.jpg");
+            generator.submit(text);
+            for (int i = 0; i < 100 && ImageVariantGenerator.PENDING.equals(generator.status(text)); i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(ImageVariantGenerator.FAILED, generator.status(text));
+        } finally {
+            ReflectionTestUtils.invokeMethod(generator, "destroy");
+        }
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SeckillRateLimiterTests {
+
+    // the local tier only, the Redis tier is off by default
+    private static SeckillRateLimiter limiter(double permitsPerSecond, int burst) {
+        SeckillRateLimiter limiter = new SeckillRateLimiter(null);
+        ReflectionTestUtils.setField(limiter, "localPermitsPerSecond", permitsPerSecond);
+        ReflectionTestUtils.setField(limiter, "localBurst", burst);
+        return limiter;
+    }
+
+    @Test
+    void testStats() {
+        SeckillRateLimiter limiter = limiter(0.001, 3);
+        for (int i = 0; i < 5; i++) {
+            limiter.tryAcquire(1L);
+        }
+        assertTrue(limiter.tryAcquire(2L));
+
+        Map<Long, Map<String, Long>> stats = limiter.stats();
+        assertEquals(2, stats.size());
+        assertEquals(3L, stats.get(1L).get("admitted"));
+        assertEquals(2L, stats.get(1L).get("rejectedLocal"));
+        assertEquals(0L, stats.get(1L).get("rejectedCluster"));
+        assertEquals(1L, stats.get(2L).get("admitted"));
+        assertEquals(0L, stats.get(2L).get("rejectedLocal"));
+    }
+
+    @Test
+    void testUntrackedVouchersShareOneLimit() {
+        SeckillRateLimiter limiter = limiter(0.001, 1);
+        for (long voucherId = 0; voucherId < 4096; voucherId++) {
+            assertTrue(limiter.tryAcquire(voucherId));
+        }
+        // the map is full, the next vouchers count as -1 and share its single token
+        assertTrue(limiter.tryAcquire(5000L));
+        assertFalse(limiter.tryAcquire(5001L));
+        Map<Long, Map<String, Long>> stats = limiter.stats();
+        assertEquals(4097, stats.size());
+        assertEquals(1L, stats.get(-1L).get("admitted"));
+        assertEquals(1L, stats.get(-1L).get("rejectedLocal"));
+    }
+}
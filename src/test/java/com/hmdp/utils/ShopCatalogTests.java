@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShopCatalogTests {
+
+    private static final String[] AREAS = {"大关", "拱宸桥/上塘", "运河上街", "西湖", "滨江"};
+    private static final String[] SORTS = {ShopCatalog.SORT_BY_SCORE, ShopCatalog.SORT_BY_SOLD, ShopCatalog.SORT_BY_COMMENTS};
+
+    @Test
+    void testQuery() {
+        int shops = 5000, types = 5;
+        ShopCatalog catalog = new ShopCatalog(null);
+        Random random = new Random(42);
+        Shop[] all = new Shop[shops];
+        for (int i = 0; i < shops; i++) {
+            all[i] = new Shop().setId(i + 1L).setTypeId(1L + random.nextInt(types))
+                    .setArea(AREAS[random.nextInt(AREAS.length)]).setAvgPrice(20L + random.nextInt(400))
+                    .setScore(10 + random.nextInt(41)).setSold(random.nextInt(20000)).setComments(random.nextInt(5000));
+            catalog.put(all[i]);
+        }
+        // both the bitmap scan before sorting and the walk of the presorted orders
+        for (boolean sorted : new boolean[]{false, true}) {
+            if (sorted) {
+                catalog.sort();
+            }
+            for (int q = 0; q < 100; q++) {
+                Long typeId = random.nextBoolean() ? 1L + random.nextInt(types) : null;
+                String area = random.nextBoolean() ? AREAS[random.nextInt(AREAS.length)] : null;
+                long min = 20L + random.nextInt(300);
+                String sortBy = SORTS[random.nextInt(SORTS.length)];
+                assertEquals(expected(all, typeId, area, min, min + 100, sortBy, 10, 10),
+                        catalog.query(typeId, area, min, min + 100, sortBy, 10, 10));
+            }
+        }
+        // a page past the matches is empty
+        assertTrue(catalog.query(1L, null, null, null, ShopCatalog.SORT_BY_SCORE, shops, 10).isEmpty());
+    }
+
+    // the same as filtering and sorting all shops
+    private static List<Long> expected(Shop[] all, Long typeId, String area, long min, long max, String sortBy,
+                                       int from, int size) {
+        ToIntFunction<Shop> sort = ShopCatalog.SORT_BY_SOLD.equals(sortBy) ? Shop::getSold
+                : ShopCatalog.SORT_BY_COMMENTS.equals(sortBy) ? Shop::getComments : Shop::getScore;
+        return Arrays.stream(all)
+                .filter(shop -> (typeId == null || shop.getTypeId().equals(typeId))
+                        && (area == null || shop.getArea().equals(area))
+                        && shop.getAvgPrice() >= min && shop.getAvgPrice() <= max)
+                .sorted((a, b) -> sort.applyAsInt(a) != sort.applyAsInt(b)
+                        ? sort.applyAsInt(b) - sort.applyAsInt(a) : Long.compare(a.getId(), b.getId()))
+                .skip(from).limit(size).map(Shop::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ShopGeoIndexTests {
+
+    @Test
+    void testNearest() {
+        int shops = 2000;
+        long typeId = 1;
+        ShopGeoIndex index = new ShopGeoIndex(null, null);
+        Random random = new Random(42);
+        double[][] points = new double[shops + 1][];
+        for (int id = 1; id <= shops; id++) {
+            points[id] = new double[]{119.8 + random.nextDouble() * 0.6, 30.0 + random.nextDouble() * 0.5};
+            index.put(id, typeId, points[id][0], points[id][1]);
+        }
+        for (int q = 0; q < 100; q++) {
+            double x = 119.8 + random.nextDouble() * 0.6, y = 30.0 + random.nextDouble() * 0.5;
+            // the same as sorting all shops by distance
+            double[] distances = new double[shops];
+            for (int id = 1; id <= shops; id++) {
+                distances[id - 1] = ShopGeoIndex.distance(x, y, points[id][0], points[id][1]);
+            }
+            Arrays.sort(distances);
+            ShopGeoIndex.Hits hits = index.nearest(typeId, x, y, Double.POSITIVE_INFINITY, 10);
+            assertEquals(10, hits.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(distances[i], hits.distance(i), 1e-6);
+            }
+            long within = Arrays.stream(distances).filter(d -> d <= 3000).count();
+            assertEquals(Math.min(within, 50), index.nearest(typeId, x, y, 3000, 50).size());
+        }
+    }
+
+    @Test
+    void testKLargerThanPartition() {
+        ShopGeoIndex index = new ShopGeoIndex(null, null);
+        index.put(1, 1, 120.1, 30.2);
+        index.put(2, 1, 120.2, 30.3);
+        // no heap of k entries for a page far past the shops of the type
+        ShopGeoIndex.Hits hits = index.nearest(1, 120.1, 30.2, Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+        assertEquals(2, hits.size());
+        assertEquals(1, hits.id(0));
+        assertEquals(0, index.nearest(2, 120.1, 30.2, Double.POSITIVE_INFINITY, 10).size());
+    }
+}
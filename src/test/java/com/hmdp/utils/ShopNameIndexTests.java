@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ShopNameIndexTests {
+
+    @Test
+    void testSearch() {
+        int shops = 5000;
+        String chars = "新白鹿餐厅茶火锅烤肉串香辣小龙虾牛羊汤面馆饺子包点心甜品咖啡奶茶";
+        ShopNameIndex index = new ShopNameIndex(null, null);
+        Random random = new Random(42);
+        String[] names = new String[shops];
+        long[] ranks = new long[shops];
+        for (int i = 0; i < shops; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int len = 3 + random.nextInt(6); len > 0; len--) {
+                name.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            names[i] = name.toString();
+            int score = 10 + random.nextInt(41), sold = random.nextInt(20000);
+            ranks[i] = (long) score << 32 | sold;
+            index.put(i + 1, names[i], score, sold);
+        }
+        for (int q = 0; q < 200; q++) {
+            String name = names[random.nextInt(shops)];
+            int len = 1 + random.nextInt(3), from = random.nextInt(name.length() - len + 1);
+            String keyword = name.substring(from, from + len);
+            // the same as LIKE '%keyword%' sorted by score, sold and id
+            List<Long> expected = IntStream.range(0, shops).filter(i -> names[i].contains(keyword)).boxed()
+                    .sorted(Comparator.<Integer>comparingLong(i -> -ranks[i]).thenComparing(i -> i))
+                    .skip(10).limit(10).map(i -> i + 1L).collect(Collectors.toList());
+            assertEquals(expected, index.search(keyword, 10, 10).getIds(), keyword);
+        }
+    }
+}
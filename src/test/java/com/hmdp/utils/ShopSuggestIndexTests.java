@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ShopSuggestIndexTests {
+
+    @Test
+    void testSuggest() {
+        int shops = 5000;
+        String chars = "新白鹿餐厅茶火锅烤肉串香辣小龙虾";
+        ShopSuggestIndex index = new ShopSuggestIndex(null);
+        Random random = new Random(42);
+        String[] names = new String[shops];
+        long[] ranks = new long[shops];
+        for (int i = 0; i < shops; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int len = 3 + random.nextInt(6); len > 0; len--) {
+                name.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            names[i] = name.toString();
+            int score = 10 + random.nextInt(41), sold = random.nextInt(20000);
+            ranks[i] = (long) score << 32 | sold;
+            index.put(i + 1, names[i], score, sold);
+        }
+        index.rebuild();
+        for (int q = 0; q < 200; q++) {
+            String prefix = names[random.nextInt(shops)].substring(0, 1 + random.nextInt(3));
+            // the same as sorting all matches by score, sold and id
+            List<Long> expected = IntStream.range(0, shops).filter(i -> names[i].startsWith(prefix)).boxed()
+                    .sorted(Comparator.<Integer>comparingLong(i -> -ranks[i]).thenComparing(i -> i))
+                    .limit(10).map(i -> i + 1L).collect(Collectors.toList());
+            List<Long> suggested = index.suggest(prefix, 10).stream().map(Shop::getId).collect(Collectors.toList());
+            assertEquals(expected, suggested, prefix);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTests {
+
+    @Test
+    void testExpiry() {
+        // one millisecond ticks from 0, so a deadline is its tick
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        // around the slot boundaries of every level, the tasks name their own deadline
+        long[] deadlines = {1, 2, 63, 64, 65, 127, 128, 4095, 4096, 4097, 5000, 262143, 262144, 262145, 300000};
+        for (long deadline : deadlines) {
+            wheel.add(deadline, deadline);
+        }
+        assertEquals(deadlines.length, wheel.size());
+        Map<Long, Long> expiredAt = advance(wheel, 1, 300000);
+        for (long deadline : deadlines) {
+            assertEquals(deadline, expiredAt.get(deadline).longValue(), "task " + deadline);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testCascadeAfterStart() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        advance(wheel, 1, 100);
+        // placed relative to tick 100, cascaded down on later wrap arounds
+        long[] deadlines = {164, 4195, 4196, 70000};
+        for (long deadline : deadlines) {
+            wheel.add(deadline, deadline);
+        }
+        Map<Long, Long> expiredAt = advance(wheel, 1, 70000 - 100);
+        for (long deadline : deadlines) {
+            assertEquals(deadline, expiredAt.get(deadline).longValue(), "task " + deadline);
+        }
+    }
+
+    @Test
+    void testPastDeadline() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1000, 0);
+        advance(wheel, 1000, 5);
+        // already due, expires on the next tick
+        wheel.add(1L, 1000);
+        List<Long> expired = wheel.advance();
+        assertEquals(1, expired.size());
+        assertEquals(1L, expired.get(0).longValue());
+        assertEquals(7000, wheel.nextTickMillis());
+    }
+
+    @Test
+    void testBeyondSpan() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        // past the 64^4 ticks of the wheel, parked in the top level and placed again until it expires on time
+        long deadline = (1L << 24) + 100;
+        wheel.add(deadline, deadline);
+        Map<Long, Long> expiredAt = advance(wheel, 1, deadline);
+        assertEquals(deadline, expiredAt.get(deadline).longValue());
+    }
+
+    // advance the wheel by the given ticks of the given length, returns the tick each task expired at
+    private static Map<Long, Long> advance(TimingWheel<Long> wheel, long tickMillis, long ticks) {
+        Map<Long, Long> expiredAt = new HashMap<>();
+        for (long i = 0; i < ticks; i++) {
+            List<Long> expired = wheel.advance();
+            long tick = wheel.nextTickMillis() / tickMillis - 1;
+            for (Long task : expired) {
+                assertTrue(expiredAt.put(task, tick) == null, "task " + task + " expired twice");
+            }
+        }
+        return expiredAt;
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTests {
+
+    @Test
+    void testBurst() {
+        // one token in 1000 seconds, nothing refills during the test
+        TokenBucket bucket = new TokenBucket(0.001, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire());
+        }
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void testRefill() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20, 2);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        // a token every 50 ms
+        Thread.sleep(60);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        // refills up to the burst only
+        Thread.sleep(300);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void testConcurrentAcquire() throws InterruptedException {
+        int burst = 1000, threads = 16, attempts = 500;
+        TokenBucket bucket = new TokenBucket(0.001, burst);
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                es.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < attempts; i++) {
+                        if (bucket.tryAcquire()) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                    return null;
+                });
+            }
+            start.countDown();
+            es.shutdown();
+            assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            es.shutdownNow();
+        }
+        // every token is taken exactly once, however the CAS races go
+        assertEquals(burst, acquired.get());
+    }
+}